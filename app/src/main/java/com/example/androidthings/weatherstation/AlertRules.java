@@ -0,0 +1,206 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Threshold rules reacting to the station readings with the GPIO leds, the speaker and MQTT
+ * alerts. Rules are declared as text, one per rule:
+ * <pre>
+ *     name: metric &lt;|&gt; threshold [hysteresis h] -&gt; action, action...
+ *     pressure_drop: pressure_tendency &lt; -3 hysteresis 0.5 -&gt; led_blue, speaker, mqtt
+ * </pre>
+ * Metrics: {@code temperature}, {@code pressure}, {@code pressure_tendency} (hPa in 3 hours),
+ * {@code cpu_temperature}. Actions: {@code led_red}, {@code led_green}, {@code led_blue},
+ * {@code speaker}, {@code mqtt}.
+ * <p>
+ * The rules are compiled once into flat arrays indexed by metric, so a new value only
+ * evaluates the rules on its own metric, without allocating. Rules are edge triggered: actions
+ * fire when a rule becomes active, a led stays on while any rule using it is active.
+ */
+public class AlertRules {
+
+    public static final int METRIC_TEMPERATURE = 0;
+    public static final int METRIC_PRESSURE = 1;
+    public static final int METRIC_PRESSURE_TENDENCY = 2;
+    public static final int METRIC_CPU_TEMPERATURE = 3;
+    private static final String[] METRICS = {
+            "temperature", "pressure", "pressure_tendency", "cpu_temperature"};
+
+    public static final int LED_RED = 0;
+    public static final int LED_GREEN = 1;
+    public static final int LED_BLUE = 2;
+    private static final int LED_COUNT = 3;
+
+    private static final int ACTION_SPEAKER = 1 << LED_COUNT;
+    private static final int ACTION_MQTT = 1 << (LED_COUNT + 1);
+    private static final String[] ACTIONS = {
+            "led_red", "led_green", "led_blue", "speaker", "mqtt"};
+
+    /**
+     * Receives the actions of the rules; called on the thread feeding the values.
+     */
+    public interface Actions {
+        void setLed(int led, boolean on);
+
+        void playAlert();
+
+        void publishAlert(String rule, float value);
+    }
+
+    private final Actions mActions;
+
+    //compiled rules, one entry per rule
+    private final String[] mNames;
+    private final boolean[] mGreater;
+    private final float[] mThresholds;
+    private final float[] mHysteresis;
+    private final int[] mActionMasks;
+    private final boolean[] mActive;
+    //rule indexes per metric
+    private final int[][] mRulesByMetric;
+    //number of active rules per led
+    private final int[] mLedUsers = new int[LED_COUNT];
+
+    public AlertRules(String[] rules, Actions actions) {
+        mActions = actions;
+        int n = rules.length;
+        mNames = new String[n];
+        mGreater = new boolean[n];
+        mThresholds = new float[n];
+        mHysteresis = new float[n];
+        mActionMasks = new int[n];
+        mActive = new boolean[n];
+        int[] metrics = new int[n];
+        for (int i = 0; i < n; i++) {
+            metrics[i] = compile(i, rules[i]);
+        }
+
+        List<List<Integer>> byMetric = new ArrayList<>();
+        for (int m = 0; m < METRICS.length; m++) {
+            byMetric.add(new ArrayList<Integer>());
+        }
+        for (int i = 0; i < n; i++) {
+            byMetric.get(metrics[i]).add(i);
+        }
+        mRulesByMetric = new int[METRICS.length][];
+        for (int m = 0; m < METRICS.length; m++) {
+            List<Integer> indexes = byMetric.get(m);
+            mRulesByMetric[m] = new int[indexes.size()];
+            for (int j = 0; j < indexes.size(); j++) {
+                mRulesByMetric[m][j] = indexes.get(j);
+            }
+        }
+    }
+
+    //parses one rule into slot i, returns its metric
+    private int compile(int i, String rule) {
+        String[] nameAndBody = rule.split(":", 2);
+        String[] conditionAndActions = nameAndBody.length == 2 ? nameAndBody[1].split("->") : new String[0];
+        if (conditionAndActions.length != 2) {
+            throw new IllegalArgumentException("Invalid rule: " + rule);
+        }
+        mNames[i] = nameAndBody[0].trim();
+
+        String[] condition = conditionAndActions[0].trim().toLowerCase(Locale.US).split("\\s+");
+        if (condition.length != 3 && !(condition.length == 5 && condition[3].equals("hysteresis"))) {
+            throw new IllegalArgumentException("Invalid condition in rule: " + rule);
+        }
+        int metric = indexOf(METRICS, condition[0], rule);
+        switch (condition[1]) {
+            case "<":
+                mGreater[i] = false;
+                break;
+            case ">":
+                mGreater[i] = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid operator in rule: " + rule);
+        }
+        try {
+            mThresholds[i] = Float.parseFloat(condition[2]);
+            mHysteresis[i] = condition.length == 5 ? Float.parseFloat(condition[4]) : 0f;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number in rule: " + rule, e);
+        }
+
+        for (String action : conditionAndActions[1].split(",")) {
+            mActionMasks[i] |= 1 << indexOf(ACTIONS, action.trim().toLowerCase(Locale.US), rule);
+        }
+        return metric;
+    }
+
+    private static int indexOf(String[] names, String name, String rule) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown '" + name + "' in rule: " + rule);
+    }
+
+    public int size() {
+        return mNames.length;
+    }
+
+    /**
+     * Evaluates the rules on {@code metric} against a new value. NaN values are ignored.
+     */
+    public void onValue(int metric, float value) {
+        if (Float.isNaN(value)) {
+            return;
+        }
+        int[] rules = mRulesByMetric[metric];
+        for (int j = 0; j < rules.length; j++) {
+            int i = rules[j];
+            boolean active;
+            if (mGreater[i]) {
+                active = mActive[i] ? value > mThresholds[i] - mHysteresis[i] : value > mThresholds[i];
+            } else {
+                active = mActive[i] ? value < mThresholds[i] + mHysteresis[i] : value < mThresholds[i];
+            }
+            if (active != mActive[i]) {
+                mActive[i] = active;
+                fire(i, active, value);
+            }
+        }
+    }
+
+    private void fire(int i, boolean active, float value) {
+        int mask = mActionMasks[i];
+        for (int led = 0; led < LED_COUNT; led++) {
+            if ((mask & (1 << led)) != 0) {
+                mLedUsers[led] += active ? 1 : -1;
+                if (mLedUsers[led] == (active ? 1 : 0)) {
+                    mActions.setLed(led, active);
+                }
+            }
+        }
+        if (!active) {
+            return;
+        }
+        if ((mask & ACTION_SPEAKER) != 0) {
+            mActions.playAlert();
+        }
+        if ((mask & ACTION_MQTT) != 0) {
+            mActions.publishAlert(mNames[i], value);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Short term weather forecast from the barometric pressure and its 3 hour tendency.
+ * Pressure samples are averaged into one point per minute; the tendency is the slope of a
+ * linear regression over the last 3 hours of points. The regression sums are updated
+ * incrementally when a point enters or leaves the window, so every sample costs O(1) and
+ * nothing is ever rescanned or allocated.
+ * The forecast itself follows the Zambretti algorithm: the sea level pressure and the trend
+ * select a forecast number, which is looked up in a rule table.
+ */
+public class BarometricForecaster {
+
+    public enum Weather {
+        SUNNY(R.drawable.ic_sunny, 0xffffa000),
+        CLOUDY(R.drawable.ic_cloudy, 0xffffffff),
+        RAINY(R.drawable.ic_rainy, 0xff0040ff),
+        STORMY(R.drawable.ic_rainy, 0xff8000ff);
+
+        private final int mIcon;
+        private final int mColor;
+
+        Weather(int icon, int color) {
+            mIcon = icon;
+            mColor = color;
+        }
+
+        public int getIcon() {
+            return mIcon;
+        }
+
+        public int getLedColor() {
+            return mColor;
+        }
+    }
+
+    private static final long WINDOW_MS = 3 * 60 * 60 * 1000;
+    private static final long POINT_MS = 60 * 1000;
+    private static final int CAPACITY = (int) (WINDOW_MS / POINT_MS);
+    //the tendency is not meaningful before this much history is available
+    private static final long MIN_SPAN_MS = 60 * 60 * 1000;
+    private static final double MS_PER_HOUR = 60 * 60 * 1000;
+    //pressures are stored as an offset from this value to keep the sums well conditioned
+    private static final float PRESSURE_OFFSET = 1000f;
+
+    //a change of more than this in 3 hours is a rising or falling trend
+    private static final float TREND_THRESHOLD = 1.6f;
+
+    // Zambretti rule table, indexed by forecast number:
+    // 1-9 falling, 10-19 steady, 20-32 rising pressure.
+    private static final Weather[] ZAMBRETTI = {
+            null,
+            // falling
+            Weather.SUNNY,  // 1  settled fine
+            Weather.SUNNY,  // 2  fine weather
+            Weather.CLOUDY, // 3  fine, becoming less settled
+            Weather.CLOUDY, // 4  fairly fine, showery later
+            Weather.RAINY,  // 5  showery, becoming more unsettled
+            Weather.RAINY,  // 6  unsettled, rain later
+            Weather.RAINY,  // 7  rain at times, worse later
+            Weather.RAINY,  // 8  rain at times, becoming very unsettled
+            Weather.STORMY, // 9  very unsettled, rain
+            // steady
+            Weather.SUNNY,  // 10 settled fine
+            Weather.SUNNY,  // 11 fine weather
+            Weather.CLOUDY, // 12 fine, possibly showers
+            Weather.CLOUDY, // 13 fairly fine, showers likely
+            Weather.CLOUDY, // 14 showery, bright intervals
+            Weather.CLOUDY, // 15 changeable, some rain
+            Weather.RAINY,  // 16 unsettled, rain at times
+            Weather.RAINY,  // 17 rain at frequent intervals
+            Weather.RAINY,  // 18 very unsettled, rain
+            Weather.STORMY, // 19 stormy, much rain
+            // rising
+            Weather.SUNNY,  // 20 settled fine
+            Weather.SUNNY,  // 21 fine weather
+            Weather.SUNNY,  // 22 becoming fine
+            Weather.SUNNY,  // 23 fairly fine, improving
+            Weather.CLOUDY, // 24 fairly fine, possibly showers early
+            Weather.CLOUDY, // 25 showery early, improving
+            Weather.CLOUDY, // 26 changeable, mending
+            Weather.CLOUDY, // 27 rather unsettled, clearing later
+            Weather.CLOUDY, // 28 unsettled, probably improving
+            Weather.RAINY,  // 29 unsettled, short fine intervals
+            Weather.RAINY,  // 30 very unsettled, finer at times
+            Weather.STORMY, // 31 stormy, possibly improving
+            Weather.STORMY, // 32 stormy, much rain
+    };
+
+    /** Size in bytes of the state written by {@link #writeState}. */
+    public static final int STATE_SIZE = 4 + 4 + CAPACITY * (8 + 4);
+
+    private final float mAltitude;
+
+    //ring buffer of one point per minute, oldest at mHead
+    private final long[] mTimes = new long[CAPACITY];
+    private final float[] mValues = new float[CAPACITY];
+    private int mHead;
+    private int mSize;
+
+    //regression sums, with t in hours relative to mBaseMs and p relative to PRESSURE_OFFSET
+    private long mBaseMs;
+    private double mSumT;
+    private double mSumP;
+    private double mSumTT;
+    private double mSumTP;
+
+    //point being accumulated
+    private long mPointStartMs = -1;
+    private double mPointSum;
+    private int mPointCount;
+
+    private float mSeaLevelPressure = Float.NaN;
+    private float mTendency = Float.NaN;
+    private int mZambretti;
+
+    /**
+     * @param altitude altitude of the station in meters, used to reduce the pressure to sea level
+     */
+    public BarometricForecaster(float altitude) {
+        mAltitude = altitude;
+    }
+
+    /**
+     * Adds a pressure sample.
+     *
+     * @param pressure     station pressure in hPa
+     * @param temperature  temperature in degrees Celsius, for the sea level reduction
+     * @param timeMs       wall clock time of the sample
+     */
+    public synchronized void onSample(float pressure, float temperature, long timeMs) {
+        mSeaLevelPressure = toSeaLevel(pressure, temperature);
+        if (mPointStartMs >= 0 && timeMs - mPointStartMs >= POINT_MS) {
+            addPoint(mPointStartMs, (float) (mPointSum / mPointCount));
+            mPointCount = 0;
+        }
+        if (mPointCount == 0) {
+            mPointStartMs = timeMs;
+            mPointSum = 0;
+        }
+        mPointSum += mSeaLevelPressure;
+        mPointCount++;
+        update();
+    }
+
+    private float toSeaLevel(float pressure, float temperature) {
+        if (mAltitude == 0) {
+            return pressure;
+        }
+        // hypsometric formula, as suggested in the BMP280 application notes
+        double h = 0.0065 * mAltitude;
+        return (float) (pressure * Math.pow(1 - h / (temperature + h + 273.15), -5.257));
+    }
+
+    private void addPoint(long timeMs, float value) {
+        //evict points which left the window, and the oldest one if the ring is full
+        while (mSize > 0 && (mSize == CAPACITY || mTimes[mHead] <= timeMs - WINDOW_MS)) {
+            double t = (mTimes[mHead] - mBaseMs) / MS_PER_HOUR;
+            double p = mValues[mHead] - PRESSURE_OFFSET;
+            mSumT -= t;
+            mSumP -= p;
+            mSumTT -= t * t;
+            mSumTP -= t * p;
+            mHead = (mHead + 1) % CAPACITY;
+            mSize--;
+        }
+        //move the time origin to the newest point: keeps t small without rescanning the window
+        double c = (timeMs - mBaseMs) / MS_PER_HOUR;
+        mSumTT += -2 * c * mSumT + mSize * c * c;
+        mSumTP -= c * mSumP;
+        mSumT -= mSize * c;
+        mBaseMs = timeMs;
+
+        double p = value - PRESSURE_OFFSET;
+        mSumP += p;
+        //t is 0 for the newest point, so it adds nothing to mSumT, mSumTT and mSumTP
+        int tail = (mHead + mSize) % CAPACITY;
+        mTimes[tail] = timeMs;
+        mValues[tail] = value;
+        mSize++;
+    }
+
+    private void update() {
+        mTendency = Float.NaN;
+        if (mSize > 2 && mTimes[(mHead + mSize - 1) % CAPACITY] - mTimes[mHead] >= MIN_SPAN_MS) {
+            double denominator = mSize * mSumTT - mSumT * mSumT;
+            if (denominator > 0) {
+                double slope = (mSize * mSumTP - mSumT * mSumP) / denominator;
+                mTendency = (float) (slope * 3);
+            }
+        }
+
+        // Zambretti forecast numbers; an unknown tendency is treated as steady.
+        float p = mSeaLevelPressure;
+        int z;
+        if (mTendency < -TREND_THRESHOLD) {
+            z = clamp(Math.round(127 - 0.12f * p), 1, 9);
+        } else if (mTendency > TREND_THRESHOLD) {
+            z = clamp(Math.round(185 - 0.16f * p), 20, 32);
+        } else {
+            z = clamp(Math.round(144 - 0.13f * p), 10, 19);
+        }
+        mZambretti = z;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(value, max));
+    }
+
+    /** Zambretti forecast number, 1 to 32, or 0 if no pressure has been seen yet. */
+    public synchronized int getZambretti() {
+        return Float.isNaN(mSeaLevelPressure) ? 0 : mZambretti;
+    }
+
+    /** Forecast weather, or null if no pressure has been seen yet. */
+    public synchronized Weather getWeather() {
+        return Float.isNaN(mSeaLevelPressure) ? null : ZAMBRETTI[mZambretti];
+    }
+
+    /** Pressure change over 3 hours in hPa, or NaN if there is not enough history yet. */
+    public synchronized float getTendency() {
+        return mTendency;
+    }
+
+    /**
+     * Writes the last 3 hours of points, so the tendency survives a restart.
+     */
+    public synchronized void writeState(ByteBuffer buffer) {
+        buffer.putInt(mSize);
+        buffer.putFloat(mSeaLevelPressure);
+        for (int i = 0; i < CAPACITY; i++) {
+            int index = (mHead + i) % CAPACITY;
+            buffer.putLong(i < mSize ? mTimes[index] : 0);
+            buffer.putFloat(i < mSize ? mValues[index] : Float.NaN);
+        }
+    }
+
+    /**
+     * Restores the points written by {@link #writeState}. Points outside of the window are dropped.
+     */
+    public synchronized void readState(ByteBuffer buffer, long nowMs) {
+        int size = buffer.getInt();
+        float seaLevelPressure = buffer.getFloat();
+        for (int i = 0; i < CAPACITY; i++) {
+            long timeMs = buffer.getLong();
+            float value = buffer.getFloat();
+            if (i < size && timeMs > nowMs - WINDOW_MS && timeMs <= nowMs) {
+                addPoint(timeMs, value);
+            }
+        }
+        if (mSize > 0) {
+            mSeaLevelPressure = seaLevelPressure;
+            update();
+        }
+    }
+}
@@ -20,7 +20,10 @@ import android.os.Build;
 
 import com.google.android.things.pio.PeripheralManagerService;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @SuppressWarnings("WeakerAccess")
 public final class BoardDefaults {
@@ -32,6 +35,7 @@ public final class BoardDefaults {
     private static final String DEVICE_IMX6UL_VVDN = "imx6ul_iopb";
     private static final String DEVICE_IMX7D_PICO = "imx7d_pico";
     private static String sBoardVariant = "";
+    private static PeripheralManagerService sPeripheralManagerService;
 
     //configuration for the RPI3
     protected static final String RPI_BUTTON_A = "BCM21";
@@ -42,114 +46,89 @@ public final class BoardDefaults {
     protected static final String RPI_LED_GREEN = "BCM19";
     protected static final String RPI_LED_BLUE = "BCM26";
 
-    public static String getButtonGpioPin() {
-        switch (getBoardVariant()) {
-            case DEVICE_EDISON_ARDUINO:
-                return "IO12";
-            case DEVICE_EDISON:
-                return "GP44";
-            case DEVICE_JOULE:
-                return "J7_71";
-            case DEVICE_RPI3:
-                //button A only
-                return "BCM21";
-            case DEVICE_IMX6UL_PICO:
-                return "GPIO2_IO03";
-            case DEVICE_IMX6UL_VVDN:
-                return "GPIO3_IO01";
-            case DEVICE_IMX7D_PICO:
-                return "GPIO_174";
-            default:
-                throw new IllegalArgumentException("Unknown device: " + Build.DEVICE);
+    /**
+     * Pins and buses of one board.
+     */
+    public static final class Profile {
+        private final String mButtonGpioPin;
+        private final String mLedGpioPin;
+        private final String mI2cBus;
+        private final String mSpiBus;
+        private final String mSpeakerPwmPin;
+
+        Profile(String buttonGpioPin, String ledGpioPin, String i2cBus, String spiBus, String speakerPwmPin) {
+            mButtonGpioPin = buttonGpioPin;
+            mLedGpioPin = ledGpioPin;
+            mI2cBus = i2cBus;
+            mSpiBus = spiBus;
+            mSpeakerPwmPin = speakerPwmPin;
         }
     }
 
-    public static String getLedGpioPin() {
-        switch (getBoardVariant()) {
-            case DEVICE_EDISON_ARDUINO:
-                return "IO13";
-            case DEVICE_EDISON:
-                return "GP45";
-            case DEVICE_JOULE:
-                return "J6_25";
-            case DEVICE_RPI3:
-                //red led on A button only
-                return "BCM6";
-            case DEVICE_IMX6UL_PICO:
-                return "GPIO4_IO22";
-            case DEVICE_IMX6UL_VVDN:
-                return "GPIO3_IO06";
-            case DEVICE_IMX7D_PICO:
-                return "GPIO_34";
-            default:
+    private static final Map<String, Profile> PROFILES;
+
+    static {
+        Map<String, Profile> profiles = new HashMap<>();
+        //                                              button        led           i2c     spi       speaker
+        profiles.put(DEVICE_EDISON_ARDUINO, new Profile("IO12",       "IO13",       "I2C6", "SPI1",   "IO3"));
+        profiles.put(DEVICE_EDISON,         new Profile("GP44",       "GP45",       "I2C1", "SPI2",   "GP13"));
+        profiles.put(DEVICE_JOULE,          new Profile("J7_71",      "J6_25",      "I2C0", "SPI0.0", "PWM_0"));
+        //button A and its red led only
+        profiles.put(DEVICE_RPI3,           new Profile("BCM21",      "BCM6",       "I2C1", "SPI0.0", "PWM1"));
+        profiles.put(DEVICE_IMX6UL_PICO,    new Profile("GPIO2_IO03", "GPIO4_IO22", "I2C2", "SPI3.0", "PWM8"));
+        profiles.put(DEVICE_IMX6UL_VVDN,    new Profile("GPIO3_IO01", "GPIO3_IO06", "I2C4", "SPI1.0", "PWM3"));
+        profiles.put(DEVICE_IMX7D_PICO,     new Profile("GPIO_174",   "GPIO_34",    "I2C1", "SPI3.1", "PWM2"));
+        PROFILES = Collections.unmodifiableMap(profiles);
+    }
+
+    private static Profile sProfile;
+
+    /**
+     * Returns the profile of the board the app runs on, resolved on the first call.
+     */
+    public static synchronized Profile getProfile() {
+        if (sProfile == null) {
+            Profile profile = PROFILES.get(getBoardVariant());
+            if (profile == null) {
                 throw new IllegalArgumentException("Unknown device: " + Build.DEVICE);
+            }
+            sProfile = profile;
         }
+        return sProfile;
+    }
+
+    public static String getButtonGpioPin() {
+        return getProfile().mButtonGpioPin;
+    }
+
+    public static String getLedGpioPin() {
+        return getProfile().mLedGpioPin;
     }
 
     public static String getI2cBus() {
-        switch (getBoardVariant()) {
-            case DEVICE_EDISON_ARDUINO:
-                return "I2C6";
-            case DEVICE_EDISON:
-                return "I2C1";
-            case DEVICE_JOULE:
-                return "I2C0";
-            case DEVICE_RPI3:
-                return "I2C1";
-            case DEVICE_IMX6UL_PICO:
-                return "I2C2";
-            case DEVICE_IMX6UL_VVDN:
-                return "I2C4";
-            case DEVICE_IMX7D_PICO:
-                return "I2C1";
-            default:
-                throw new IllegalArgumentException("Unknown device: " + Build.DEVICE);
-        }
+        return getProfile().mI2cBus;
     }
 
     public static String getSpiBus() {
-        switch (getBoardVariant()) {
-            case DEVICE_EDISON_ARDUINO:
-                return "SPI1";
-            case DEVICE_EDISON:
-                return "SPI2";
-            case DEVICE_JOULE:
-                return "SPI0.0";
-            case DEVICE_RPI3:
-                return "SPI0.0";
-            case DEVICE_IMX6UL_PICO:
-                return "SPI3.0";
-            case DEVICE_IMX6UL_VVDN:
-                return "SPI1.0";
-            case DEVICE_IMX7D_PICO:
-                return "SPI3.1";
-            default:
-                throw new IllegalArgumentException("Unknown device: " + Build.DEVICE);
-        }
+        return getProfile().mSpiBus;
     }
 
     public static String getSpeakerPwmPin() {
-        switch (getBoardVariant()) {
-            case DEVICE_EDISON_ARDUINO:
-                return "IO3";
-            case DEVICE_EDISON:
-                return "GP13";
-            case DEVICE_JOULE:
-                return "PWM_0";
-            case DEVICE_RPI3:
-                return "PWM1";
-            case DEVICE_IMX6UL_PICO:
-                return "PWM8";
-            case DEVICE_IMX6UL_VVDN:
-                return "PWM3";
-            case DEVICE_IMX7D_PICO:
-                return "PWM2";
-            default:
-                throw new IllegalArgumentException("Unknown device: " + Build.DEVICE);
+        return getProfile().mSpeakerPwmPin;
+    }
+
+    /**
+     * Returns the process-wide PeripheralManagerService, shared by the board detection and the
+     * peripheral bring-up.
+     */
+    public static synchronized PeripheralManagerService getPeripheralManagerService() {
+        if (sPeripheralManagerService == null) {
+            sPeripheralManagerService = new PeripheralManagerService();
         }
+        return sPeripheralManagerService;
     }
 
-    private static String getBoardVariant() {
+    private static synchronized String getBoardVariant() {
         if (!sBoardVariant.isEmpty()) {
             return sBoardVariant;
         }
@@ -157,8 +136,7 @@ public final class BoardDefaults {
         // For the edison check the pin prefix
         // to always return Edison Breakout pin name when applicable.
         if (sBoardVariant.equals(DEVICE_EDISON)) {
-            PeripheralManagerService pioService = new PeripheralManagerService();
-            List<String> gpioList = pioService.getGpioList();
+            List<String> gpioList = getPeripheralManagerService().getGpioList();
             if (gpioList.size() != 0) {
                 String pin = gpioList.get(0);
                 if (pin.startsWith("IO")) {
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.Locale;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Drains an {@link Outbox} of ThingSpeak update payloads ({@code field1=...&created_at=...})
+ * through the bulk-update HTTP API: each request packs up to {@link #MAX_BATCH} messages into
+ * one gzipped JSON document, streamed from the outbox as it is read. Messages are only
+ * consumed once the server accepted the request.
+ * <p>
+ * Server errors, throttling and I/O errors are retried later. An unknown key or channel (401,
+ * 403, 404) affects every message: nothing is consumed and the drain backs off for
+ * {@link #REFUSED_RETRY_DELAY_MS}, until the config is fixed. Any other 4xx is a verdict on the
+ * content: the batch is split in halves until the rejected messages are isolated, and those are
+ * moved to a quarantine outbox, so one bad message cannot block the backlog.
+ */
+public class BulkUploader implements AutoCloseable {
+    private static final String TAG = BulkUploader.class.getSimpleName();
+
+    /**
+     * Rate limit shared with the other writers of the channel, e.g.
+     * {@link OutboundScheduler#tryAcquire}.
+     */
+    public interface RateLimit {
+        /**
+         * Takes the right to send one request. Called on the upload thread.
+         *
+         * @return 0 if a request may be sent now, else the milliseconds to wait
+         */
+        long tryAcquire();
+    }
+
+    enum Result {
+        /** Some messages were consumed, accepted or quarantined. */
+        CONSUMED,
+        /** Nothing was consumed, the request should be retried later. */
+        FAILED,
+        /** Nothing was consumed, the key or channel is refused: retry much later. */
+        REFUSED
+    }
+
+    //ThingSpeak limits: 960 messages per update, the rate limit is shared with MQTT
+    static final int MAX_BATCH = 960;
+    private static final long RETRY_DELAY_MS = 60000;
+    static final long REFUSED_RETRY_DELAY_MS = 30 * 60 * 1000;
+    private static final int TIMEOUT_MS = 30000;
+
+    private final Context mContext;
+    private final Outbox mOutbox;
+    private final Outbox mQuarantine;
+    private final String mUrl;
+    private final String mApiKey;
+    private final RateLimit mRateLimit;
+
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
+
+    //uptime before which no request is sent, after a failure
+    private volatile long mNextUploadMs;
+
+    //only touched on the upload thread
+    private int mBatchLimit = MAX_BATCH;
+    private long mUploadedMessages;
+    private long mUploadedBytes;
+    private long mUploadTimeMs;
+
+    /**
+     * @param quarantine where messages rejected by the server are moved to
+     * @param url        the bulk-update endpoint of the channel
+     */
+    public BulkUploader(Context context, Outbox outbox, Outbox quarantine, String url, String apiKey,
+            RateLimit rateLimit) {
+        mContext = context;
+        mOutbox = outbox;
+        mQuarantine = quarantine;
+        mUrl = url;
+        mApiKey = apiKey;
+        mRateLimit = rateLimit;
+
+        mHandlerThread = new HandlerThread("BulkUploadThread");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+    }
+
+    /**
+     * Appends a message to the outbox and starts draining it. Safe from any thread.
+     */
+    public void enqueue(String message) {
+        if (mOutbox.append(message)) {
+            kick();
+        }
+    }
+
+    /**
+     * Starts draining the outbox, as soon as the rate limit allows. Safe from any thread.
+     */
+    public void kick() {
+        mHandler.removeCallbacks(mUploadRunnable);
+        mHandler.postAtTime(mUploadRunnable, Math.max(SystemClock.uptimeMillis(), mNextUploadMs));
+    }
+
+    private final Runnable mUploadRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            if (mOutbox.getPendingBytes() == 0) {
+                return;
+            }
+            long delay;
+            if (!isNetworkAvailable()) {
+                delay = RETRY_DELAY_MS;
+            } else {
+                delay = mRateLimit.tryAcquire();
+                if (delay == 0) {
+                    Result result = upload();
+                    if (result == Result.FAILED) {
+                        delay = RETRY_DELAY_MS;
+                    } else if (result == Result.REFUSED) {
+                        delay = REFUSED_RETRY_DELAY_MS;
+                    }
+                }
+            }
+            mNextUploadMs = SystemClock.uptimeMillis() + delay;
+            if (mOutbox.getPendingBytes() > 0) {
+                mHandler.postAtTime(mUploadRunnable, mNextUploadMs);
+            }
+        }
+    };
+
+    private boolean isNetworkAvailable() {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo activeNetwork = connectivityManager.getActiveNetworkInfo();
+        return activeNetwork != null && activeNetwork.isConnected();
+    }
+
+    //sends one batch, regardless of the rate limit
+    Result upload() {
+        long start = SystemClock.elapsedRealtime();
+        HttpURLConnection connection = null;
+        try (Outbox.Batch batch = mOutbox.read()) {
+            String message = batch.next();
+            if (message == null) {
+                return Result.CONSUMED;
+            }
+            connection = (HttpURLConnection) new URL(mUrl).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("Content-Encoding", "gzip");
+            //stream the body instead of buffering it to compute its length
+            connection.setChunkedStreamingMode(0);
+
+            CountingOutputStream counter = new CountingOutputStream(connection.getOutputStream());
+            int count = 0;
+            try (Writer writer = new BufferedWriter(
+                    new OutputStreamWriter(new GZIPOutputStream(counter), "UTF-8"))) {
+                writer.write("{\"write_api_key\":");
+                writeString(writer, mApiKey);
+                writer.write(",\"updates\":[");
+                while (message != null) {
+                    if (count > 0) {
+                        writer.write(',');
+                    }
+                    writeUpdate(writer, message);
+                    count++;
+                    message = count < mBatchLimit ? batch.next() : null;
+                }
+                writer.write("]}");
+            }
+
+            int code = connection.getResponseCode();
+            if (code / 100 != 2) {
+                Log.w(TAG, "Bulk update of " + count + " messages rejected: " + code + " "
+                        + connection.getResponseMessage());
+                return onRejected(code, count);
+            }
+            mOutbox.commit(batch.getOffset());
+            //back to full batches once past the messages which got rejected
+            mBatchLimit = Math.min(MAX_BATCH, mBatchLimit * 2);
+
+            long elapsedMs = Math.max(1, SystemClock.elapsedRealtime() - start);
+            mUploadedMessages += count;
+            mUploadedBytes += counter.getCount();
+            mUploadTimeMs += elapsedMs;
+            Log.i(TAG, String.format(Locale.US,
+                    "Uploaded %d messages (%d bytes gzipped) in %d ms, %.1f messages/s; "
+                            + "%d messages (%d bytes) in %d ms overall, %d bytes left",
+                    count, counter.getCount(), elapsedMs, count * 1000f / elapsedMs,
+                    mUploadedMessages, mUploadedBytes, mUploadTimeMs, mOutbox.getPendingBytes()));
+            return Result.CONSUMED;
+        } catch (IOException e) {
+            Log.e(TAG, "Bulk update failed", e);
+            return Result.FAILED;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private Result onRejected(int code, int count) throws IOException {
+        if (code / 100 != 4 || code == 408 || code == 429) {
+            //server side or throttling: the same request may succeed later
+            return Result.FAILED;
+        }
+        if (code == 401 || code == 403 || code == 404) {
+            //wrong key or channel: no message can get through until the config is fixed, keep
+            //the backlog for then
+            Log.e(TAG, "Bulk update refused (" + code + "), check the channel id and write key; "
+                    + mOutbox.getPendingBytes() + " bytes kept");
+            return Result.REFUSED;
+        }
+        if (count > 1) {
+            mBatchLimit = count / 2;
+            Log.i(TAG, "Retrying with batches of " + mBatchLimit + " messages");
+        } else {
+            quarantine(1);
+        }
+        return Result.CONSUMED;
+    }
+
+    //moves the next count messages out of the outbox
+    private void quarantine(int count) throws IOException {
+        try (Outbox.Batch batch = mOutbox.read()) {
+            for (int i = 0; i < count; i++) {
+                String message = batch.next();
+                if (message == null) {
+                    break;
+                }
+                Log.w(TAG, "Quarantining rejected message: " + message);
+                mQuarantine.append(message);
+            }
+            mOutbox.commit(batch.getOffset());
+        }
+    }
+
+    //turns "field1=21.5&created_at=...&status=..." into {"field1":"21.5",...}, values are
+    //form-encoded in the message but plain in JSON
+    private static void writeUpdate(Writer writer, String message) throws IOException {
+        writer.write('{');
+        int start = 0;
+        boolean first = true;
+        while (start < message.length()) {
+            int end = message.indexOf('&', start);
+            if (end < 0) {
+                end = message.length();
+            }
+            int equals = message.indexOf('=', start);
+            if (equals > start && equals < end) {
+                if (!first) {
+                    writer.write(',');
+                }
+                writeString(writer, message.substring(start, equals));
+                writer.write(':');
+                writeString(writer, decode(message.substring(equals + 1, end)));
+                first = false;
+            }
+            start = end + 1;
+        }
+        writer.write('}');
+    }
+
+    private static String decode(String value) throws IOException {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (IllegalArgumentException e) {
+            //queued before statuses were encoded
+            return value;
+        }
+    }
+
+    private static void writeString(Writer writer, String value) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                writer.write('\\');
+                writer.write(c);
+            } else if (c < 0x20) {
+                writer.write(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            mCount += len;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+    }
+
+    @Override
+    public void close() {
+        mHandler.removeCallbacksAndMessages(null);
+        mHandlerThread.quitSafely();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Shards the published metrics across ThingSpeak channels, since a channel holds at most
+ * {@link #MAX_FIELDS} fields and has its own rate limit. The map is declared as text, one
+ * entry per channel separated by {@code ;}:
+ * <pre>
+ *     channel_id:write_api_key:metric,metric...
+ * </pre>
+ * The metrics of a channel go to {@code field1}, {@code field2}... in order.
+ */
+public class ChannelMap {
+
+    public static final int MAX_FIELDS = 8;
+
+    public enum Metric {
+        TEMPERATURE,
+        PRESSURE,
+        HUMIDITY,
+        CPU_TEMPERATURE,
+        TEMPERATURE_MIN,
+        TEMPERATURE_MAX,
+        TEMPERATURE_MEAN,
+        PRESSURE_MIN,
+        PRESSURE_MAX,
+        PRESSURE_MEAN,
+        /** Zambretti forecast number, 1 to 32. */
+        FORECAST,
+        /** hPa in 3 hours. */
+        PRESSURE_TENDENCY,
+        /** Recent RMS error of the thermal compensation against the reference probe. */
+        THERMAL_FIT_RMS,
+        /** Average time the thermal compensation takes per sample, in nanoseconds. */
+        THERMAL_COST_NS,
+        /** Level of the thermal governor, 0 for normal. */
+        THERMAL_LEVEL,
+        /** Share of the time the thermal governor slowed the station down, in percent. */
+        THROTTLED_PERCENT,
+        /** Share of the time spent in each level of the thermal governor, in percent. */
+        THERMAL_TIME_NORMAL,
+        THERMAL_TIME_WARM,
+        THERMAL_TIME_HOT,
+        THERMAL_TIME_CRITICAL,
+        /** CPU usage of the station in each level of the thermal governor, in percent of a core. */
+        THERMAL_CPU_NORMAL,
+        THERMAL_CPU_WARM,
+        THERMAL_CPU_HOT,
+        THERMAL_CPU_CRITICAL
+    }
+
+    public static class Channel {
+        private final String mId;
+        private final String mWriteKey;
+        private final Metric[] mFields;
+
+        Channel(String id, String writeKey, Metric[] fields) {
+            mId = id;
+            mWriteKey = writeKey;
+            mFields = fields;
+        }
+
+        public String getId() {
+            return mId;
+        }
+
+        public String getWriteKey() {
+            return mWriteKey;
+        }
+
+        /** Metric published in {@code field(i + 1)}. */
+        public Metric getField(int i) {
+            return mFields[i];
+        }
+
+        public int getFieldCount() {
+            return mFields.length;
+        }
+
+        public String getTopic() {
+            return "channels/" + mId + "/publish/" + mWriteKey;
+        }
+    }
+
+    private final List<Channel> mChannels;
+
+    public ChannelMap(String map) {
+        List<Channel> channels = new ArrayList<>();
+        for (String entry : map.split(";")) {
+            if (entry.trim().isEmpty()) {
+                continue;
+            }
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Invalid channel: " + entry);
+            }
+            String[] names = parts[2].split(",");
+            if (names.length > MAX_FIELDS) {
+                throw new IllegalArgumentException("More than " + MAX_FIELDS + " fields in channel: " + entry);
+            }
+            Metric[] fields = new Metric[names.length];
+            for (int i = 0; i < names.length; i++) {
+                try {
+                    fields[i] = Metric.valueOf(names[i].trim().toUpperCase(Locale.US));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown metric '" + names[i] + "' in channel: " + entry, e);
+                }
+            }
+            channels.add(new Channel(parts[0].trim(), parts[1].trim(), fields));
+        }
+        if (channels.isEmpty()) {
+            throw new IllegalArgumentException("No channel in: " + map);
+        }
+        mChannels = Collections.unmodifiableList(channels);
+    }
+
+    /**
+     * The channels in declaration order; the first one is the primary channel.
+     */
+    public List<Channel> getChannels() {
+        return mChannels;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.atomic.AtomicReference;
+
+import rx.Observable;
+import rx.subjects.BehaviorSubject;
+import rx.subjects.SerializedSubject;
+import rx.subjects.Subject;
+
+/**
+ * Holds the current {@link StationConfig}. A new version replaces it atomically, so readers
+ * always see a consistent set of parameters without locking. Versions not newer than the
+ * current one (e.g. a retained message delivered again on reconnect) are ignored.
+ * <p>
+ * The config seen by the readers may be stretched by a scale, see {@link #setScale}.
+ * <p>
+ * Every applied version is saved to a file, see {@link #restore}, so that a restart while the
+ * config broker is out of reach does not fall back to {@link StationConfig#DEFAULT}.
+ */
+public class ConfigStore {
+    private static final String TAG = ConfigStore.class.getSimpleName();
+
+    private final AtomicReference<StationConfig> mConfig = new AtomicReference<>(StationConfig.DEFAULT);
+    //as received, before scaling; guarded by this
+    private StationConfig mBase = StationConfig.DEFAULT;
+    private int mScale = 1;
+    //null until restored; guarded by this
+    private File mFile;
+    private final Subject<StationConfig, StationConfig> mConfigs =
+            new SerializedSubject<>(BehaviorSubject.create(StationConfig.DEFAULT));
+
+    public StationConfig get() {
+        return mConfig.get();
+    }
+
+    /**
+     * The current config, then every new version. Safe to subscribe from any thread.
+     */
+    public Observable<StationConfig> observe() {
+        return mConfigs;
+    }
+
+    /**
+     * Applies the config saved in {@code file} by a previous run, if any, then saves every new
+     * version to it. Call once, before the config messages come in.
+     */
+    public synchronized void restore(File file) {
+        mFile = file;
+        if (!file.exists()) {
+            return;
+        }
+        try (RandomAccessFile reader = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[(int) reader.length()];
+            reader.readFully(bytes);
+            mBase = StationConfig.parse(new String(bytes, "UTF-8"), StationConfig.DEFAULT);
+            Log.i(TAG, "Restored " + mBase);
+            apply();
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Ignoring saved config", e);
+        }
+    }
+
+    /**
+     * Applies a config message. Safe from any thread.
+     *
+     * @return true if the config changed
+     */
+    public synchronized boolean update(String message) {
+        StationConfig current = mBase;
+        StationConfig config;
+        try {
+            config = StationConfig.parse(message, current);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Ignoring config", e);
+            return false;
+        }
+        if (config.getVersion() <= current.getVersion()) {
+            Log.d(TAG, "Ignoring config version " + config.getVersion()
+                    + ", current is " + current.getVersion());
+            return false;
+        }
+        mBase = config;
+        Log.i(TAG, "Applied " + config);
+        apply();
+        save();
+        return true;
+    }
+
+    //replaces the file atomically, a torn write would lose the config instead of updating it
+    private void save() {
+        if (mFile == null) {
+            return;
+        }
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(mBase.toJson().getBytes("UTF-8"));
+            out.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving config", e);
+            return;
+        }
+        if (!tempFile.renameTo(mFile)) {
+            Log.e(TAG, "Error replacing saved config");
+        }
+    }
+
+    /**
+     * Multiplies the intervals of the config by {@code scale} until set back to 1, e.g. to let
+     * the board cool down. Safe from any thread.
+     */
+    public synchronized void setScale(int scale) {
+        if (scale == mScale) {
+            return;
+        }
+        mScale = scale;
+        apply();
+    }
+
+    private void apply() {
+        StationConfig config = mBase.scaled(mScale);
+        //readers never lock: they see either the old or the new config as a whole
+        mConfig.set(config);
+        mConfigs.onNext(config);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+
+import org.eclipse.paho.android.service.MqttAndroidClient;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.Locale;
+
+/**
+ * Subscribes to the config topic of the device, {@link BuildConfig#CONFIG_TOPIC}, on the broker
+ * of {@link BuildConfig#CONFIG_BROKER_URI}, and hands every message to the {@link ConfigStore}.
+ * The ThingSpeak broker the metrics go to does not accept subscriptions to arbitrary topics, so
+ * the config comes over a connection of its own.
+ */
+public class ConfigSubscriber {
+    private static final String TAG = ConfigSubscriber.class.getSimpleName();
+
+    private static final long CONNECT_RETRY_MS = 30000;
+
+    private final ConfigStore mConfigStore;
+    private final String mBrokerUri;
+    private final String mTopic;
+    private final Handler mHandler = new Handler();
+    private final MqttAndroidClient mqttAndroidClient;
+    private final MqttConnectOptions mqttConnectOptions;
+
+    /**
+     * @return true if both the config broker and topic are set
+     */
+    public static boolean isEnabled() {
+        return !BuildConfig.CONFIG_BROKER_URI.isEmpty() && !BuildConfig.CONFIG_TOPIC.isEmpty();
+    }
+
+    /**
+     * Connects right away. Call on a thread with a looper, e.g. the main thread.
+     */
+    public ConfigSubscriber(Context context, ConfigStore configStore) {
+        mConfigStore = configStore;
+        mBrokerUri = BuildConfig.CONFIG_BROKER_URI;
+        mTopic = String.format(Locale.US, BuildConfig.CONFIG_TOPIC, Build.SERIAL);
+
+        mqttAndroidClient = new MqttAndroidClient(context, mBrokerUri, MqttClient.generateClientId());
+        mqttAndroidClient.setCallback(new MqttCallbackExtended() {
+
+            @Override
+            public void connectComplete(boolean reconnect, String serverURI) {
+                Log.d(TAG, "Connected to: " + mBrokerUri);
+                //clean sessions drop subscriptions, and the retained config comes with every new one
+                subscribe();
+            }
+
+            @Override
+            public void connectionLost(Throwable cause) {
+                Log.d(TAG, "Disconnected from: " + mBrokerUri);
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) throws Exception {
+                if (topic.equals(mTopic)) {
+                    mConfigStore.update(new String(message.getPayload(), "UTF-8"));
+                }
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+                //nothing is published on this connection
+            }
+        });
+
+        mqttConnectOptions = new MqttConnectOptions();
+        mqttConnectOptions.setAutomaticReconnect(true);
+        mqttConnectOptions.setCleanSession(true);
+
+        mHandler.post(mConnectRunnable);
+    }
+
+    private final Runnable mConnectRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            try {
+                mqttAndroidClient.connect(mqttConnectOptions, null, new IMqttActionListener() {
+
+                    @Override
+                    public void onSuccess(IMqttToken asyncActionToken) {
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                        //automatic reconnect only covers connections which succeeded once
+                        Log.d(TAG, "Failed to connect to: " + mBrokerUri);
+                        mHandler.postDelayed(mConnectRunnable, CONNECT_RETRY_MS);
+                    }
+                });
+            } catch (MqttException e) {
+                Log.d(TAG, "Connection failed " + e.toString());
+                mHandler.postDelayed(mConnectRunnable, CONNECT_RETRY_MS);
+            }
+        }
+    };
+
+    private void subscribe() {
+        try {
+            mqttAndroidClient.subscribe(mTopic, 1);
+        } catch (MqttException e) {
+            Log.e(TAG, "Failed to subscribe to " + mTopic, e);
+        }
+    }
+
+    public void close() {
+        mHandler.removeCallbacks(mConnectRunnable);
+        try {
+            if (mqttAndroidClient.isConnected()) {
+                mqttAndroidClient.disconnect();
+            }
+        } catch (MqttException e) {
+            Log.d(TAG, "Disconnection error" + e.toString());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Filters applied in order to the samples of one channel, e.g. temperature.
+ * A chain is configured with a spec like {@code "outlier:2:3,median:3,ema:0.5"}:
+ * <ul>
+ * <li>{@code outlier:<max step>:<max rejected>} - {@link SignalFilter.OutlierRejection}</li>
+ * <li>{@code median:<window>} - {@link SignalFilter.Median}</li>
+ * <li>{@code ema:<alpha>} - {@link SignalFilter.Ema}</li>
+ * </ul>
+ * An empty spec passes samples through unchanged.
+ */
+public class FilterChain {
+
+    private final SignalFilter[] mFilters;
+
+    public FilterChain(SignalFilter... filters) {
+        mFilters = filters;
+    }
+
+    public static FilterChain parse(String spec) {
+        List<SignalFilter> filters = new ArrayList<>();
+        for (String stage : spec.split(",")) {
+            stage = stage.trim();
+            if (stage.isEmpty()) {
+                continue;
+            }
+            String[] args = stage.split(":");
+            try {
+                switch (args[0]) {
+                    case "outlier":
+                        filters.add(new SignalFilter.OutlierRejection(
+                                Float.parseFloat(args[1]), Integer.parseInt(args[2])));
+                        break;
+                    case "median":
+                        filters.add(new SignalFilter.Median(Integer.parseInt(args[1])));
+                        break;
+                    case "ema":
+                        filters.add(new SignalFilter.Ema(Float.parseFloat(args[1])));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown filter: " + stage);
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Invalid filter: " + stage, e);
+            }
+        }
+        return new FilterChain(filters.toArray(new SignalFilter[filters.size()]));
+    }
+
+    public float filter(float value) {
+        for (SignalFilter filter : mFilters) {
+            value = filter.filter(value);
+        }
+        return value;
+    }
+
+    public void reset() {
+        for (SignalFilter filter : mFilters) {
+            filter.reset();
+        }
+    }
+}
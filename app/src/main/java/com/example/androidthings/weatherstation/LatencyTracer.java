@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.os.SystemClock;
+
+/**
+ * Age of the samples at each stage of the pipeline, measured from their acquisition time
+ * ({@link SystemClock#elapsedRealtimeNanos()} base). Each stage keeps a histogram with
+ * power of two millisecond buckets, so recording is cheap and never allocates.
+ */
+public class LatencyTracer {
+
+    public enum Stage {
+        /** Sample handed to the station service. */
+        DELIVERED,
+        /** Sample written to the display. */
+        DISPLAYED,
+        /** Sample encoded into a payload by the publisher. */
+        ENCODED,
+        /** Payload handed to the MQTT client. */
+        SENT,
+        /**
+         * MQTT client wrote the payload to the socket. ThingSpeak only supports QoS 0, so there
+         * is no acknowledgement from the broker to wait for.
+         */
+        WRITTEN
+    }
+
+    //bucket i holds latencies in [2^(i-1), 2^i) ms, bucket 0 below 1 ms
+    private static final int BUCKETS = 32;
+
+    private final long[][] mHistograms = new long[Stage.values().length][BUCKETS];
+    private final long[] mCounts = new long[Stage.values().length];
+    private final long[] mSumsMs = new long[Stage.values().length];
+    private final long[] mMaxMs = new long[Stage.values().length];
+
+    /**
+     * Records that a sample acquired at {@code acquiredNs} reached {@code stage} now.
+     */
+    public void record(Stage stage, long acquiredNs) {
+        if (acquiredNs <= 0) {
+            return;
+        }
+        long latencyMs = (SystemClock.elapsedRealtimeNanos() - acquiredNs) / 1000000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, latencyMs)));
+        int s = stage.ordinal();
+        synchronized (this) {
+            mHistograms[s][bucket]++;
+            mCounts[s]++;
+            mSumsMs[s] += latencyMs;
+            mMaxMs[s] = Math.max(mMaxMs[s], latencyMs);
+        }
+    }
+
+    /**
+     * One line per stage: count, mean, approximate median and 99th percentile, max.
+     */
+    public synchronized String report() {
+        StringBuilder report = new StringBuilder("Sample latency (ms):");
+        for (Stage stage : Stage.values()) {
+            int s = stage.ordinal();
+            if (mCounts[s] == 0) {
+                continue;
+            }
+            report.append("\n  ").append(stage)
+                    .append(": n=").append(mCounts[s])
+                    .append(" mean=").append(mSumsMs[s] / mCounts[s])
+                    .append(" p50<").append(percentileBound(s, 0.5))
+                    .append(" p99<").append(percentileBound(s, 0.99))
+                    .append(" max=").append(mMaxMs[s]);
+        }
+        return report.toString();
+    }
+
+    //upper bound of the bucket holding the given percentile
+    private long percentileBound(int s, double percentile) {
+        long target = (long) Math.ceil(mCounts[s] * percentile);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mHistograms[s][i];
+            if (seen >= target) {
+                return 1L << i;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
@@ -17,13 +17,11 @@
 package com.example.androidthings.weatherstation;
 
 import android.content.Context;
-import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.eclipse.paho.android.service.MqttAndroidClient;
@@ -36,50 +34,116 @@ import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.MqttPersistenceException;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
 
 
 //Adapted from https://github.com/eclipse/paho.mqtt.android/blob/master/paho.mqtt.android.example/src/main/java/paho/mqtt/java/example/PahoExampleActivity.java
+/**
+ * Publishes the station metrics to the ThingSpeak channels of {@link BuildConfig#THINGSPEAK_CHANNELS}.
+ * Every channel is a destination of its own in the {@link OutboundScheduler}, with its own rate
+ * limit and backlog, so adding channels adds throughput.
+ */
 public class MqttPublisher {
     private static final String TAG = MqttPublisher.class.getSimpleName();
 
     private final Context mContext;
     private final String mAppname;
-    private final String mTopic;
+    private final List<ChannelMap.Channel> mChannels;
 
     private Handler mHandler;
     private HandlerThread mHandlerThread;
 
-    private float mLastTemperature = Float.NaN;
-    private float mLastPressure = Float.NaN;
+    //latest value of each metric, NaN if unknown; guarded by itself
+    private final float[] mValues = new float[ChannelMap.Metric.values().length];
+    //acquisition time of the last sample, 0 for restored values
+    private long mLastTimestampNs;
+    //wall clock time the restored values were saved at, 0 if none
+    private long mRestoredAtMs;
 
-    //thingSpeak supports publishing every > 15 seconds
-    private static final long PUBLISH_INTERVAL_MS = 20000;
+    //thingSpeak supports publishing every > 15 seconds, see StationConfig; the margin absorbs
+    //clock and broker jitter, an update a few ms early would be dropped
+    private static final long THINGSPEAK_RATE_LIMIT_MS = 16000;
+    private static final long CONNECT_RETRY_MS = 30000;
 
     private static final String MQTT_BROKER_URI = "ssl://mqtt.thingspeak.com:8883";
     private MqttAndroidClient mqttAndroidClient;
     private final MqttConnectOptions mqttConnectOptions;
-    private String mMessagePayload;
     private static final String mPublishStatus = "MQTTPUBLISH";
-
-    public MqttPublisher(Context context, String appname) throws IOException {
+    private final OutboundScheduler mOutboundScheduler;
+    private final LatencyTracer mLatencyTracer;
+    //backfill goes through the HTTP bulk API instead of one MQTT message per rate limit slot,
+    //one uploader per channel topic
+    private final Map<String, BulkUploader> mBulkUploaders = new HashMap<>();
+    private static final long LATENCY_REPORT_INTERVAL_MS = 10 * 60 * 1000;
+    private static final String LEGACY_OUTBOX = "outbox";
+    private final SimpleDateFormat mDateFormat =
+            new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+
+    public MqttPublisher(Context context, String appname, LatencyTracer latencyTracer)
+            throws IOException {
         mContext = context;
         mAppname = appname;
-        mTopic = "channels/"+ BuildConfig.THINGSPEAK_CHANNEL_ID + "/publish/" + BuildConfig.THINGSPEAK_WRITE_API_KEY;
+        mLatencyTracer = latencyTracer;
+        mDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        mChannels = new ChannelMap(BuildConfig.THINGSPEAK_CHANNELS).getChannels();
+        Arrays.fill(mValues, Float.NaN);
 
         //create a new thread and related Looper
         mHandlerThread = new HandlerThread("MQTTPublisherThread");
         mHandlerThread.start();
         mHandler = new Handler(mHandlerThread.getLooper());
 
+        mOutboundScheduler = new OutboundScheduler(mHandler, mSender, mBacklog);
+        for (ChannelMap.Channel channel : mChannels) {
+            final String topic = channel.getTopic();
+            mOutboundScheduler.addDestination(topic, 1, THINGSPEAK_RATE_LIMIT_MS);
+            //the bulk API counts against the same channel limit as MQTT
+            BulkUploader.RateLimit rateLimit = new BulkUploader.RateLimit() {
+
+                @Override
+                public long tryAcquire() {
+                    return mOutboundScheduler.tryAcquire(topic);
+                }
+            };
+            Outbox outbox = new Outbox(context.getFilesDir(), "outbox-" + channel.getId());
+            if (channel == mChannels.get(0)) {
+                migrateLegacyOutbox(context.getFilesDir(), channel, outbox);
+            }
+            BulkUploader bulkUploader = new BulkUploader(context, outbox,
+                    new Outbox(context.getFilesDir(), "outbox-" + channel.getId() + ".rejected"),
+                    BuildConfig.THINGSPEAK_API_URL + "/channels/" + channel.getId() + "/bulk_update.json",
+                    channel.getWriteKey(), rateLimit);
+            //send what was left from the previous run
+            bulkUploader.kick();
+            mBulkUploaders.put(topic, bulkUploader);
+        }
+
         mqttAndroidClient = new MqttAndroidClient(context, MQTT_BROKER_URI, MqttClient.generateClientId());
         mqttAndroidClient.setCallback(new MqttCallbackExtended() {
 
             @Override
             public void connectComplete(boolean reconnect, String serverURI) {
                 Log.d(TAG, "Connected to: " + MQTT_BROKER_URI);
+                //send what piled up while disconnected
+                mHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        mOutboundScheduler.kick();
+                    }
+                });
             }
 
             @Override
@@ -94,7 +158,11 @@ public class MqttPublisher {
 
             @Override
             public void deliveryComplete(IMqttDeliveryToken token) {
+                //at QoS 0 this only means the client wrote the message out
                 Log.d(TAG, "Delivery Complete");
+                if (token.getUserContext() instanceof Long) {
+                    mLatencyTracer.record(LatencyTracer.Stage.WRITTEN, (Long) token.getUserContext());
+                }
             }
         });
 
@@ -102,38 +170,83 @@ public class MqttPublisher {
         mqttConnectOptions.setAutomaticReconnect(true);
         mqttConnectOptions.setCleanSession(true);
 
-        mHandler.post(new Runnable() {
+        mHandler.post(mConnectRunnable);
+        //the restored readings are queued from the start; they are backfilled if the connection
+        //is not up yet
+        mHandler.post(mPublishRunnable);
+        mHandler.postDelayed(mLatencyReportRunnable, LATENCY_REPORT_INTERVAL_MS);
+    }
 
-            @Override
-            public void run() {
-                try {
-                    mqttAndroidClient.connect(mqttConnectOptions, null, new IMqttActionListener() {
-
-                        @Override
-                        public void onSuccess(IMqttToken asyncActionToken) {
-                            DisconnectedBufferOptions disconnectedBufferOptions = new DisconnectedBufferOptions();
-                            disconnectedBufferOptions.setBufferEnabled(true);
-                            disconnectedBufferOptions.setBufferSize(100);
-                            disconnectedBufferOptions.setPersistBuffer(false);
-                            disconnectedBufferOptions.setDeleteOldestMessages(false);
-                            mqttAndroidClient.setBufferOpts(disconnectedBufferOptions);
-                            mHandler.post(mPublishRunnable);
-                        }
-
-                        @Override
-                        public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
-                            Log.d(TAG, "Failed to connect to: " + MQTT_BROKER_URI);
-                        }
-                    });
-                } catch (MqttException ex){
-                    Log.d(TAG, "Connection failed " + ex.toString());
-                }
-            }
-        });
+    //the single channel outbox of earlier versions: field1 temperature, field2 pressure,
+    //field3 forecast; it only fits the primary channel if that keeps the same layout
+    private static void migrateLegacyOutbox(File dir, ChannelMap.Channel primary, Outbox target) {
+        if (!new File(dir, LEGACY_OUTBOX).exists()) {
+            return;
+        }
+        Outbox legacy = new Outbox(dir, LEGACY_OUTBOX);
+        boolean sameLayout = primary.getFieldCount() >= 3
+                && primary.getField(0) == ChannelMap.Metric.TEMPERATURE
+                && primary.getField(1) == ChannelMap.Metric.PRESSURE
+                && primary.getField(2) == ChannelMap.Metric.FORECAST;
+        if (!sameLayout) {
+            Log.w(TAG, "Deleting the backlog of the previous version (" + legacy.getPendingBytes()
+                    + " bytes): its fields do not match channel " + primary.getId());
+            legacy.delete();
+            return;
+        }
+        try {
+            int moved = legacy.moveTo(target);
+            Log.i(TAG, "Moved " + moved + " messages of the previous version to channel " + primary.getId());
+        } catch (IOException e) {
+            Log.e(TAG, "Error moving the backlog of the previous version, deleting it", e);
+            legacy.delete();
+        }
     }
 
+    private final Runnable mLatencyReportRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            Log.i(TAG, mLatencyTracer.report());
+            mHandler.postDelayed(mLatencyReportRunnable, LATENCY_REPORT_INTERVAL_MS);
+        }
+    };
+
+    private final Runnable mConnectRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            try {
+                mqttAndroidClient.connect(mqttConnectOptions, null, new IMqttActionListener() {
+
+                    @Override
+                    public void onSuccess(IMqttToken asyncActionToken) {
+                        DisconnectedBufferOptions disconnectedBufferOptions = new DisconnectedBufferOptions();
+                        disconnectedBufferOptions.setBufferEnabled(true);
+                        disconnectedBufferOptions.setBufferSize(100);
+                        disconnectedBufferOptions.setPersistBuffer(false);
+                        disconnectedBufferOptions.setDeleteOldestMessages(false);
+                        mqttAndroidClient.setBufferOpts(disconnectedBufferOptions);
+                    }
+
+                    @Override
+                    public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                        //automatic reconnect only covers connections which succeeded once
+                        Log.d(TAG, "Failed to connect to: " + MQTT_BROKER_URI);
+                        mHandler.postDelayed(mConnectRunnable, CONNECT_RETRY_MS);
+                    }
+                });
+            } catch (MqttException ex){
+                Log.d(TAG, "Connection failed " + ex.toString());
+                mHandler.postDelayed(mConnectRunnable, CONNECT_RETRY_MS);
+            }
+        }
+    };
+
     public void close() {
+        mHandler.removeCallbacks(mConnectRunnable);
         mHandler.removeCallbacks(mPublishRunnable);
+        mHandler.removeCallbacks(mLatencyReportRunnable);
         mHandler.post(new Runnable() {
 
             @Override
@@ -148,69 +261,193 @@ public class MqttPublisher {
             }
         });
         mHandlerThread.quitSafely();
+        for (BulkUploader bulkUploader : mBulkUploaders.values()) {
+            bulkUploader.close();
+        }
     }
 
+    private final OutboundScheduler.Backlog mBacklog = new OutboundScheduler.Backlog() {
+
+        @Override
+        public void add(String destination, String payload) {
+            mBulkUploaders.get(destination).enqueue(payload);
+        }
+    };
+
     private Runnable mPublishRunnable = new Runnable() {
 
         @Override
         public void run() {
+            for (ChannelMap.Channel channel : mChannels) {
+                String payload = buildPayload(channel, mPublishStatus);
+                if (payload != null) {
+                    mOutboundScheduler.submit(channel.getTopic(), payload,
+                            OutboundScheduler.Priority.NORMAL, mLastTimestampNs);
+                } else {
+                    //nothing measured nor restored yet, never publish NaN
+                    Log.d(TAG, "no data to publish yet on channel " + channel.getId());
+                }
+            }
+        }
+    };
+
+    /**
+     * Publishes the current metrics on every channel, with the given temperature and pressure,
+     * e.g. aggregated over the publish interval; NaN keeps the previous value. Safe from any
+     * thread, the rate is up to the caller.
+     *
+     * @param timestampNs acquisition time of the readings, elapsedRealtimeNanos base; 0 if none
+     */
+    public void publish(final float temperature, final float pressure, final long timestampNs) {
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                synchronized (mValues) {
+                    if (!Float.isNaN(temperature)) {
+                        mValues[ChannelMap.Metric.TEMPERATURE.ordinal()] = temperature;
+                    }
+                    if (!Float.isNaN(pressure)) {
+                        mValues[ChannelMap.Metric.PRESSURE.ordinal()] = pressure;
+                    }
+                }
+                if (timestampNs != 0) {
+                    mLastTimestampNs = timestampNs;
+                }
+                mPublishRunnable.run();
+            }
+        });
+    }
+
+    /**
+     * Publishes the current readings of the primary channel right away, ahead of routine
+     * telemetry, with the given status text.
+     */
+    public void publishAlert(final String status) {
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                ChannelMap.Channel channel = mChannels.get(0);
+                String payload = buildPayload(channel, status);
+                if (payload != null) {
+                    mOutboundScheduler.submit(channel.getTopic(), payload,
+                            OutboundScheduler.Priority.ALERT, mLastTimestampNs);
+                }
+            }
+        });
+    }
+
+    //null if there is nothing to publish yet; created_at is when the sample was acquired, when
+    //the restored values were saved, or now for values derived from neither. It is always set:
+    //the update may end up in a bulk request, which rejects updates without a time
+    private String buildPayload(ChannelMap.Channel channel, String status) {
+        StringBuilder payload = new StringBuilder();
+        synchronized (mValues) {
+            for (int i = 0; i < channel.getFieldCount(); i++) {
+                ChannelMap.Metric metric = channel.getField(i);
+                float value = mValues[metric.ordinal()];
+                if (Float.isNaN(value)) {
+                    continue;
+                }
+                payload.append("field").append(i + 1).append('=');
+                if (metric == ChannelMap.Metric.FORECAST) {
+                    payload.append((int) value);
+                } else {
+                    payload.append(value);
+                }
+                payload.append('&');
+            }
+        }
+        if (payload.length() == 0) {
+            return null;
+        }
+        long createdAtMs;
+        if (mLastTimestampNs > 0) {
+            long ageMs = (SystemClock.elapsedRealtimeNanos() - mLastTimestampNs) / 1000000;
+            createdAtMs = System.currentTimeMillis() - ageMs;
+            mLatencyTracer.record(LatencyTracer.Stage.ENCODED, mLastTimestampNs);
+        } else if (mRestoredAtMs > 0) {
+            createdAtMs = mRestoredAtMs;
+        } else {
+            createdAtMs = System.currentTimeMillis();
+        }
+        payload.append("created_at=").append(mDateFormat.format(new Date(createdAtMs))).append('&');
+        try {
+            //alert statuses carry rule names, which may contain '&' or '='
+            payload.append("status=").append(URLEncoder.encode(status, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        return payload.toString();
+    }
+
+    private final OutboundScheduler.Sender mSender = new OutboundScheduler.Sender() {
+
+        @Override
+        public boolean send(String destination, String payload, OutboundScheduler.Priority priority,
+                long acquiredNs) {
             ConnectivityManager connectivityManager =
                     (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
             NetworkInfo activeNetwork = connectivityManager.getActiveNetworkInfo();
             if (activeNetwork == null || !activeNetwork.isConnectedOrConnecting()) {
                 Log.e(TAG, "no active network");
-                return;
+                return false;
+            }
+            if (!mqttAndroidClient.isConnected()) {
+                return false;
             }
 
             try {
                 MqttMessage message = new MqttMessage();
-                mMessagePayload = "field1=" + mLastTemperature + "&field2=" + mLastPressure + "&status=" + mPublishStatus;
-                message.setPayload(mMessagePayload.getBytes());
+                message.setPayload(payload.getBytes());
                 //parameters requested by ThingSpeak APIs
                 message.setQos(0);
                 message.setRetained(false);
-                if(mqttAndroidClient != null) {
-                    mqttAndroidClient.publish(mTopic, message);
-                    Log.d(TAG, "Published new data");
-                }
-
-            } catch (MqttPersistenceException e) {
-                e.printStackTrace();
+                //the acquisition time comes back in deliveryComplete
+                mqttAndroidClient.publish(destination, message, acquiredNs, null);
+                mLatencyTracer.record(LatencyTracer.Stage.SENT, acquiredNs);
+                Log.d(TAG, "Published new data (" + priority + ")");
+                return true;
             } catch (MqttException e) {
-                e.printStackTrace();
+                //the scheduler keeps the message as backfill and retries
+                Log.e(TAG, "Error publishing", e);
+                return false;
             }
-            mHandler.postDelayed(mPublishRunnable, PUBLISH_INTERVAL_MS);
         }
     };
 
-    private SensorEventListener mTemperatureListener = new SensorEventListener() {
-
-        @Override
-        public void onSensorChanged(SensorEvent event) {
-            mLastTemperature = event.values[0];
-        }
-
-        @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
-    };
+    /**
+     * Seeds the publisher with the last known readings (e.g. from a {@link StateSnapshot}) until
+     * the first fresh sample arrives. NaN values are ignored.
+     *
+     * @param savedAtMs wall clock time the readings were saved at
+     */
+    public void restore(final float temperature, final float pressure, final long savedAtMs) {
+        mHandler.post(new Runnable() {
 
-    public SensorEventListener getTemperatureListener() {
-        return mTemperatureListener;
+            @Override
+            public void run() {
+                mRestoredAtMs = savedAtMs;
+                synchronized (mValues) {
+                    if (Float.isNaN(mValues[ChannelMap.Metric.TEMPERATURE.ordinal()])) {
+                        mValues[ChannelMap.Metric.TEMPERATURE.ordinal()] = temperature;
+                    }
+                    if (Float.isNaN(mValues[ChannelMap.Metric.PRESSURE.ordinal()])) {
+                        mValues[ChannelMap.Metric.PRESSURE.ordinal()] = pressure;
+                    }
+                }
+            }
+        });
     }
 
-    private SensorEventListener mPressureListener = new SensorEventListener() {
-
-        @Override
-        public void onSensorChanged(SensorEvent event) {
-            mLastPressure = event.values[0];
+    /**
+     * Sets the latest value of a metric, NaN if unknown. Safe from any thread.
+     */
+    public void setMetric(ChannelMap.Metric metric, float value) {
+        synchronized (mValues) {
+            mValues[metric.ordinal()] = value;
         }
-
-        @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {}
-    };
-
-    public SensorEventListener getPressureListener() {
-        return mPressureListener;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Schedules outbound messages by priority under a per-destination {@link TokenBucket}.
+ * <ul>
+ * <li>{@link Priority#ALERT} messages are sent as soon as the destination has a token.</li>
+ * <li>{@link Priority#NORMAL} messages coalesce: only the latest one per destination waits for
+ * a token, a newer one replaces it in place, and so does an alert since it carries the latest
+ * data too.</li>
+ * <li>{@link Priority#BACKFILL} messages only use tokens nothing else needs. A normal message
+ * which could not be sent (e.g. while offline) becomes backfill, so no reading is lost.
+ * Payloads are expected to carry their own timestamp.</li>
+ * </ul>
+ * Backfill is kept in memory, unless a {@link Backlog} takes it over.
+ * All methods must be called on the looper of the handler given to the constructor, except
+ * {@link #tryAcquire}.
+ */
+public class OutboundScheduler {
+    private static final String TAG = OutboundScheduler.class.getSimpleName();
+
+    public enum Priority {
+        ALERT,
+        NORMAL,
+        BACKFILL
+    }
+
+    /**
+     * Actually sends messages; {@link #send} returns false when the message could not be sent
+     * (e.g. no connection), so that it is kept and retried.
+     */
+    public interface Sender {
+        /**
+         * @param acquiredNs acquisition time of the sample in the payload, for latency tracing
+         */
+        boolean send(String destination, String payload, Priority priority, long acquiredNs);
+    }
+
+    /**
+     * Takes over backfill, e.g. to persist it and send it through another transport.
+     */
+    public interface Backlog {
+        void add(String destination, String payload);
+    }
+
+    private static final long RETRY_DELAY_MS = 5000;
+    private static final int MAX_BACKFILL = 1000;
+
+    private static class Outbound {
+        final String mPayload;
+        final long mAcquiredNs;
+
+        Outbound(String payload, long acquiredNs) {
+            mPayload = payload;
+            mAcquiredNs = acquiredNs;
+        }
+    }
+
+    private static class Destination {
+        final String mName;
+        //guarded by itself, other transports draw from it through tryAcquire
+        final TokenBucket mBucket;
+        final ArrayDeque<Outbound> mAlerts = new ArrayDeque<>();
+        Outbound mNormal;
+        final ArrayDeque<Outbound> mBackfill = new ArrayDeque<>();
+
+        Destination(String name, TokenBucket bucket) {
+            mName = name;
+            mBucket = bucket;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Sender mSender;
+    private final Backlog mBacklog;
+    private final Map<String, Destination> mDestinations = new HashMap<>();
+
+    public OutboundScheduler(Handler handler, Sender sender) {
+        this(handler, sender, null);
+    }
+
+    public OutboundScheduler(Handler handler, Sender sender, Backlog backlog) {
+        mHandler = handler;
+        mSender = sender;
+        mBacklog = backlog;
+    }
+
+    /**
+     * Declares a destination and its rate limit: at most {@code burst} messages at once, then one
+     * every {@code intervalMs}.
+     */
+    public void addDestination(String destination, int burst, long intervalMs) {
+        mDestinations.put(destination,
+                new Destination(destination, new TokenBucket(burst, intervalMs, SystemClock.elapsedRealtime())));
+    }
+
+    /**
+     * Takes a token of a destination for a message sent some other way (e.g. the HTTP bulk API
+     * of the same ThingSpeak channel), so that both transports together stay within the limit.
+     * Safe from any thread, once the destination has been added.
+     *
+     * @return 0 if the token was taken, else the milliseconds until one is available
+     */
+    public long tryAcquire(String destination) {
+        Destination d = mDestinations.get(destination);
+        if (d == null) {
+            throw new IllegalArgumentException("Unknown destination: " + destination);
+        }
+        long now = SystemClock.elapsedRealtime();
+        synchronized (d.mBucket) {
+            long delay = d.mBucket.delayUntilAvailable(now);
+            if (delay == 0) {
+                d.mBucket.tryAcquire(now);
+            }
+            return delay;
+        }
+    }
+
+    /**
+     * @param acquiredNs acquisition time of the sample in the payload, passed back to the sender
+     */
+    public void submit(String destination, String payload, Priority priority, long acquiredNs) {
+        Destination d = mDestinations.get(destination);
+        if (d == null) {
+            throw new IllegalArgumentException("Unknown destination: " + destination);
+        }
+        Outbound outbound = new Outbound(payload, acquiredNs);
+        switch (priority) {
+            case ALERT:
+                d.mAlerts.add(outbound);
+                //the alert carries the latest data, the routine update is redundant
+                d.mNormal = null;
+                break;
+            case NORMAL:
+                //the previous one is still waiting for a token: the newer data supersedes it
+                d.mNormal = outbound;
+                break;
+            case BACKFILL:
+                addBackfill(d, outbound);
+                break;
+        }
+        schedule();
+    }
+
+    /**
+     * Tries to send right away, e.g. once the connection is back.
+     */
+    public void kick() {
+        schedule();
+    }
+
+    public int getBackfillSize() {
+        int size = 0;
+        for (Destination d : mDestinations.values()) {
+            size += d.mBackfill.size();
+        }
+        return size;
+    }
+
+    private void addBackfill(Destination d, Outbound outbound) {
+        if (mBacklog != null) {
+            mBacklog.add(d.mName, outbound.mPayload);
+            return;
+        }
+        if (d.mBackfill.size() >= MAX_BACKFILL) {
+            d.mBackfill.removeFirst();
+            Log.w(TAG, "Backfill full for " + d.mName + ", dropping the oldest message");
+        }
+        d.mBackfill.addLast(outbound);
+    }
+
+    private void schedule() {
+        mHandler.removeCallbacks(mDrainRunnable);
+        mHandler.post(mDrainRunnable);
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            long now = SystemClock.elapsedRealtime();
+            long nextDelay = Long.MAX_VALUE;
+            for (Destination d : mDestinations.values()) {
+                long delay = drain(d, now);
+                nextDelay = Math.min(nextDelay, delay);
+            }
+            if (nextDelay != Long.MAX_VALUE) {
+                mHandler.postDelayed(mDrainRunnable, nextDelay);
+            }
+        }
+    };
+
+    //sends at most one message, returns the delay until this destination needs attention again
+    private long drain(Destination d, long now) {
+        boolean pending = !d.mAlerts.isEmpty() || d.mNormal != null || !d.mBackfill.isEmpty();
+        if (!pending) {
+            return Long.MAX_VALUE;
+        }
+        long delay;
+        synchronized (d.mBucket) {
+            delay = d.mBucket.delayUntilAvailable(now);
+        }
+        if (delay > 0) {
+            return delay;
+        }
+
+        Priority priority;
+        Outbound outbound;
+        if (!d.mAlerts.isEmpty()) {
+            priority = Priority.ALERT;
+            outbound = d.mAlerts.peekFirst();
+        } else if (d.mNormal != null) {
+            priority = Priority.NORMAL;
+            outbound = d.mNormal;
+        } else {
+            priority = Priority.BACKFILL;
+            outbound = d.mBackfill.peekFirst();
+        }
+
+        if (!mSender.send(d.mName, outbound.mPayload, priority, outbound.mAcquiredNs)) {
+            if (priority == Priority.NORMAL) {
+                //not live anymore by the time it can be sent
+                addBackfill(d, outbound);
+                d.mNormal = null;
+            }
+            return RETRY_DELAY_MS;
+        }
+        synchronized (d.mBucket) {
+            //taken after the send: a failed send costs no token
+            d.mBucket.tryAcquire(now);
+        }
+        switch (priority) {
+            case ALERT:
+                d.mAlerts.removeFirst();
+                break;
+            case NORMAL:
+                d.mNormal = null;
+                break;
+            case BACKFILL:
+                d.mBackfill.removeFirst();
+                break;
+        }
+        synchronized (d.mBucket) {
+            return d.mBucket.delayUntilAvailable(now);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+
+/**
+ * File-backed queue of messages waiting to be sent, one line per message. Messages are
+ * appended at the end of the file and consumed from a cursor, which is persisted atomically
+ * next to it, so the backlog survives restarts and is read back as a stream instead of being
+ * held in memory. The file is truncated once everything has been consumed.
+ * <p>
+ * Appending is thread safe; reading and committing must happen on a single thread.
+ */
+public class Outbox {
+    private static final String TAG = Outbox.class.getSimpleName();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    //about ten days of readings at one every 20 seconds
+    private static final long MAX_SIZE_BYTES = 4 * 1024 * 1024;
+
+    private final File mFile;
+    private final File mCursorFile;
+    private final File mTempFile;
+
+    //offsets in mFile: what is consumed, what is written
+    private long mCursor;
+    private long mLength;
+
+    public Outbox(File dir, String name) {
+        mFile = new File(dir, name);
+        mCursorFile = new File(dir, name + ".cursor");
+        mTempFile = new File(dir, name + ".cursor.tmp");
+        mLength = dropPartialLine();
+        mCursor = Math.min(readCursor(), mLength);
+        if (mCursor > 0) {
+            Log.i(TAG, getPendingBytes() + " bytes pending in " + mFile);
+        }
+    }
+
+    //a crash while appending can leave a truncated last message, returns the valid length
+    private long dropPartialLine() {
+        if (!mFile.exists()) {
+            return 0;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+            long length = file.length();
+            while (length > 0) {
+                file.seek(length - 1);
+                if (file.read() == '\n') {
+                    break;
+                }
+                length--;
+            }
+            if (length != file.length()) {
+                Log.w(TAG, "Dropping a partial message at the end of " + mFile);
+                file.setLength(length);
+            }
+            return length;
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening outbox", e);
+            return 0;
+        }
+    }
+
+    private long readCursor() {
+        if (!mCursorFile.exists()) {
+            return 0;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(mCursorFile, "r")) {
+            return file.readLong();
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading outbox cursor, sending everything again", e);
+            return 0;
+        }
+    }
+
+    private void writeCursor() {
+        try (RandomAccessFile file = new RandomAccessFile(mTempFile, "rw")) {
+            file.setLength(0);
+            file.writeLong(mCursor);
+            file.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing outbox cursor", e);
+            return;
+        }
+        if (!mTempFile.renameTo(mCursorFile)) {
+            Log.e(TAG, "Error replacing outbox cursor");
+        }
+    }
+
+    /**
+     * Appends a message, which must not contain a line break.
+     *
+     * @return false if the message could not be stored (outbox full or I/O error)
+     */
+    public synchronized boolean append(String message) {
+        if (message.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Line break in message: " + message);
+        }
+        byte[] bytes = (message + '\n').getBytes(UTF_8);
+        if (mLength + bytes.length > MAX_SIZE_BYTES) {
+            Log.w(TAG, "Outbox full, dropping message");
+            return false;
+        }
+        try (FileOutputStream out = new FileOutputStream(mFile, true)) {
+            out.write(bytes);
+        } catch (IOException e) {
+            Log.e(TAG, "Error appending to outbox", e);
+            return false;
+        }
+        mLength += bytes.length;
+        return true;
+    }
+
+    public synchronized long getPendingBytes() {
+        return mLength - mCursor;
+    }
+
+    /**
+     * Opens a stream over the messages appended so far, from the cursor on. Nothing is consumed
+     * until {@link #commit} is called with the offset reached.
+     */
+    public Batch read() throws IOException {
+        long start;
+        long end;
+        synchronized (this) {
+            start = mCursor;
+            end = mLength;
+        }
+        return new Batch(mFile, start, end);
+    }
+
+    /**
+     * Consumes the messages before {@code offset}, as returned by {@link Batch#getOffset()}.
+     */
+    public synchronized void commit(long offset) {
+        mCursor = offset;
+        if (mCursor == mLength) {
+            //everything sent: start over with an empty file
+            try (RandomAccessFile file = new RandomAccessFile(mFile, "rw")) {
+                file.setLength(0);
+                mCursor = 0;
+                mLength = 0;
+            } catch (IOException e) {
+                Log.e(TAG, "Error truncating outbox", e);
+            }
+        }
+        writeCursor();
+    }
+
+    /**
+     * Appends the pending messages to {@code target}, then deletes this outbox. Messages which
+     * do not fit in {@code target} are lost.
+     *
+     * @return the number of messages moved
+     */
+    public int moveTo(Outbox target) throws IOException {
+        int moved = 0;
+        try (Batch batch = read()) {
+            String message;
+            while ((message = batch.next()) != null) {
+                if (target.append(message)) {
+                    moved++;
+                }
+            }
+        }
+        delete();
+        return moved;
+    }
+
+    /**
+     * Deletes the files of this outbox, pending messages included.
+     */
+    public synchronized void delete() {
+        if ((mFile.exists() && !mFile.delete()) || (mCursorFile.exists() && !mCursorFile.delete())) {
+            Log.e(TAG, "Error deleting " + mFile);
+        }
+        mCursor = 0;
+        mLength = 0;
+    }
+
+    /**
+     * Sequential reader over a range of the outbox.
+     */
+    public static class Batch implements AutoCloseable {
+        private final InputStream mIn;
+        private final long mEnd;
+        private long mOffset;
+        private final ByteArrayOutputStream mLine = new ByteArrayOutputStream(256);
+
+        private Batch(File file, long start, long end) throws IOException {
+            mEnd = end;
+            mOffset = start;
+            FileInputStream in = new FileInputStream(file);
+            try {
+                if (in.skip(start) != start) {
+                    throw new IOException("Outbox shorter than its cursor");
+                }
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            mIn = new BufferedInputStream(in, 16 * 1024);
+        }
+
+        /**
+         * @return the next message, null at the end of the batch
+         */
+        public String next() throws IOException {
+            if (mOffset >= mEnd) {
+                return null;
+            }
+            mLine.reset();
+            int b;
+            while ((b = mIn.read()) != '\n') {
+                if (b < 0) {
+                    throw new IOException("Unexpected end of outbox");
+                }
+                mLine.write(b);
+            }
+            mOffset += mLine.size() + 1;
+            return new String(mLine.toByteArray(), UTF_8);
+        }
+
+        /**
+         * @return the offset right after the last message returned by {@link #next()}
+         */
+        public long getOffset() {
+            return mOffset;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
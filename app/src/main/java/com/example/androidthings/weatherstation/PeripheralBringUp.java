@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Opens the board peripherals in parallel. Devices on the same bus are opened one after the
+ * other, devices on different buses at the same time. Every device has its own timeout: a device
+ * which fails or does not answer in time is reported as missing and the app keeps running
+ * without it. A device which answers after its timeout is closed right away.
+ */
+public class PeripheralBringUp {
+    private static final String TAG = PeripheralBringUp.class.getSimpleName();
+
+    public enum Status {
+        OK,
+        FAILED,
+        TIMEOUT
+    }
+
+    /**
+     * A peripheral to open. {@link #onOpened} is called on a bring-up thread as soon as the
+     * device is ready, so a consumer can start using it without waiting for the other devices.
+     */
+    public static abstract class Device<T extends AutoCloseable> {
+        private final String mName;
+        private final String mBus;
+        private final long mTimeoutMs;
+
+        public Device(String name, String bus, long timeoutMs) {
+            mName = name;
+            mBus = bus;
+            mTimeoutMs = timeoutMs;
+        }
+
+        protected abstract T open() throws Exception;
+
+        protected abstract void onOpened(T device);
+    }
+
+    /**
+     * Called on the handler passed to {@link #start} once every device is opened, failed or
+     * timed out.
+     */
+    public interface Callback {
+        void onBringUpComplete(Map<String, Status> result, String report);
+    }
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final List<Entry<?>> mEntries = new ArrayList<>();
+    private final Map<String, Object> mBusLocks = new HashMap<>();
+    private volatile boolean mCancelled;
+
+    public <T extends AutoCloseable> void add(Device<T> device) {
+        if (!mBusLocks.containsKey(device.mBus)) {
+            mBusLocks.put(device.mBus, new Object());
+        }
+        mEntries.add(new Entry<>(device, mBusLocks.get(device.mBus)));
+    }
+
+    public void start(final Callback callback, final Handler handler) {
+        final long start = SystemClock.elapsedRealtime();
+        for (Entry<?> entry : mEntries) {
+            entry.mStart = start;
+            entry.mFuture = mExecutor.submit(entry);
+        }
+        mExecutor.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                final Map<String, Status> result = new HashMap<>();
+                StringBuilder report = new StringBuilder("Peripheral bring-up:");
+                for (Entry<?> entry : mEntries) {
+                    long remaining = start + entry.mDevice.mTimeoutMs - SystemClock.elapsedRealtime();
+                    try {
+                        entry.mFuture.get(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException | CancellationException
+                            | InterruptedException | ExecutionException e) {
+                        //no-op if the device already reported success or failure
+                        entry.timeout();
+                    }
+                    synchronized (entry) {
+                        result.put(entry.mDevice.mName, entry.mStatus);
+                        report.append("\n  ").append(entry.mDevice.mName)
+                                .append(" (").append(entry.mDevice.mBus).append("): ")
+                                .append(entry.mStatus).append(" after ")
+                                .append(entry.mElapsedMs).append(" ms");
+                    }
+                }
+                report.append("\n  total ").append(SystemClock.elapsedRealtime() - start).append(" ms");
+                final String message = report.toString();
+                Log.i(TAG, message);
+                mExecutor.shutdown();
+                if (!mCancelled) {
+                    handler.post(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            callback.onBringUpComplete(result, message);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops delivering devices; anything still being opened is closed when it shows up.
+     * After this returns no {@link Device#onOpened} call is in progress or will be made.
+     */
+    public void cancel() {
+        mCancelled = true;
+        for (Entry<?> entry : mEntries) {
+            entry.timeout();
+        }
+        mExecutor.shutdown();
+    }
+
+    private static class Entry<T extends AutoCloseable> implements Runnable {
+        private final Device<T> mDevice;
+        private final Object mBusLock;
+        private long mStart;
+        private Future<?> mFuture;
+
+        //guarded by this
+        private Status mStatus = Status.TIMEOUT;
+        private boolean mDone;
+        private long mElapsedMs;
+
+        Entry(Device<T> device, Object busLock) {
+            mDevice = device;
+            mBusLock = busLock;
+        }
+
+        @Override
+        public void run() {
+            T device = null;
+            Exception error = null;
+            synchronized (mBusLock) {
+                try {
+                    device = mDevice.open();
+                } catch (Exception e) {
+                    error = e;
+                }
+            }
+            synchronized (this) {
+                if (!mDone) {
+                    mDone = true;
+                    mElapsedMs = SystemClock.elapsedRealtime() - mStart;
+                    if (error == null) {
+                        mStatus = Status.OK;
+                        mDevice.onOpened(device);
+                        return;
+                    }
+                    mStatus = Status.FAILED;
+                    Log.e(TAG, "Error initializing " + mDevice.mName, error);
+                    return;
+                }
+            }
+            //timed out or cancelled in the meantime: nobody will use this device
+            if (device != null) {
+                Log.w(TAG, mDevice.mName + " answered too late, closing it");
+                try {
+                    device.close();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error closing " + mDevice.mName, e);
+                }
+            }
+        }
+
+        synchronized void timeout() {
+            if (!mDone) {
+                mDone = true;
+                mStatus = Status.TIMEOUT;
+                mElapsedMs = SystemClock.elapsedRealtime() - mStart;
+                if (mFuture != null) {
+                    mFuture.cancel(true);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Rate of change of a noisy, quantized reading, such as a thermal zone moving by 0.5 degree
+ * steps. The rate is the slope of a least squares line through the readings, weighted by
+ * exp(-age / tau): a difference between two successive readings is mostly noise and would make
+ * a single step over a one second poll read as 30 degrees per minute. The sums are updated in
+ * O(1), no history is kept, and the result does not depend on the polling interval.
+ * <p>
+ * Not thread safe.
+ */
+public class RateOfChange {
+
+    private final double mTauS;
+
+    //weighted sums over the readings, times in seconds relative to the last reading
+    private double mWeight;
+    private double mT;
+    private double mV;
+    private double mTT;
+    private double mTV;
+    private long mFirstTimeMs;
+    private long mTimeMs;
+    private float mRate;
+
+    /**
+     * @param tauMs time constant, about the time window the rate is estimated over
+     */
+    public RateOfChange(long tauMs) {
+        mTauS = tauMs / 1000.0;
+    }
+
+    /**
+     * @param timeMs time of the reading, monotonic
+     * @return the rate of change, per minute; 0 until the readings cover half the time constant
+     */
+    public float update(float value, long timeMs) {
+        if (Float.isNaN(value)) {
+            return mRate;
+        }
+        if (mWeight == 0) {
+            mFirstTimeMs = timeMs;
+        } else if (timeMs > mTimeMs) {
+            //age the readings and move the origin to the new one
+            double dt = (timeMs - mTimeMs) / 1000.0;
+            double decay = Math.exp(-dt / mTauS);
+            mTT = decay * (mTT - 2 * dt * mT + dt * dt * mWeight);
+            mTV = decay * (mTV - dt * mV);
+            mT = decay * (mT - dt * mWeight);
+            mV *= decay;
+            mWeight *= decay;
+        } else if (timeMs < mTimeMs) {
+            return mRate;
+        }
+        mTimeMs = timeMs;
+        //the new reading is at t = 0, it adds nothing to the sums of t
+        mWeight += 1;
+        mV += value;
+
+        double variance = mWeight * mTT - mT * mT;
+        if (timeMs - mFirstTimeMs >= mTauS * 500 && variance > 0) {
+            mRate = (float) ((mWeight * mTV - mT * mV) / variance * 60);
+        }
+        return mRate;
+    }
+
+    /** The rate of change per minute, see {@link #update}. */
+    public float get() {
+        return mRate;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.things.contrib.driver.bmx280.Bmx280;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drives the BMP280 in forced mode: the sensor sleeps between reads and takes a single
+ * measurement only when one of the registered consumers needs a new value.
+ * The sampling interval is the shortest interval requested by the consumers, shortened while
+ * values change fast or the user is interacting with the board. The oversampling is chosen
+ * from the resulting interval: fast sampling uses low oversampling, slow sampling can afford
+ * the most accurate (and slowest) conversion.
+ * Each channel goes through its {@link FilterChain} before reaching the consumers, the
+ * temperature then through the {@link ThermalCompensator} if there is one.
+ */
+public class SamplingScheduler implements AutoCloseable {
+    private static final String TAG = SamplingScheduler.class.getSimpleName();
+
+    /**
+     * Receives temperature and pressure measured together in one forced-mode conversion.
+     */
+    public interface Listener {
+        /**
+         * @param temperature  temperature in degrees Celsius
+         * @param pressure     pressure in hPa
+         * @param timestampNs  acquisition time, {@link SystemClock#elapsedRealtimeNanos()} base
+         */
+        void onSample(float temperature, float pressure, long timestampNs);
+    }
+
+    //shortest interval, used while the user interacts with the board or values change fast
+    private static final long FAST_INTERVAL_MS = 250;
+    //longest interval, used when no consumer asks for anything faster
+    private static final long IDLE_INTERVAL_MS = 60000;
+
+    //a change bigger than these between two samples is considered "fast"
+    private static final float FAST_TEMPERATURE_DELTA = 0.3f;
+    private static final float FAST_PRESSURE_DELTA = 0.5f;
+
+    private final Handler mHandler;
+    private final HandlerThread mHandlerThread;
+    private final Bmx280 mSensor;
+
+    private final List<Registration> mRegistrations = new ArrayList<>();
+
+    //pass-through until configured
+    private FilterChain mTemperatureFilter = new FilterChain();
+    private FilterChain mPressureFilter = new FilterChain();
+    private static final int REPORT_LOG_PERIOD = 100;
+    private ThermalCompensator mCompensator;
+
+    //only touched on the sampling thread
+    private long mInterval = IDLE_INTERVAL_MS;
+    private long mAdaptiveInterval = IDLE_INTERVAL_MS;
+    private int mTemperatureOversampling = -1;
+    private int mPressureOversampling = -1;
+    private float mPreviousTemperature = Float.NaN;
+    private float mPreviousPressure = Float.NaN;
+    private volatile long mSampleCount;
+
+    private volatile long mBoostUntil;
+    //shortest interval allowed, stretched while the board runs hot
+    private volatile long mMinInterval = FAST_INTERVAL_MS;
+
+    public SamplingScheduler(String i2cBus) throws IOException {
+        mSensor = new Bmx280(i2cBus);
+        mSensor.setMode(Bmx280.MODE_SLEEP);
+
+        mHandlerThread = new HandlerThread("SamplingThread");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+    }
+
+    /**
+     * Registers a consumer which needs a new sample at least every {@code maxIntervalMs}.
+     * The listener is called on the looper of {@code handler}; when the consumer is slower than
+     * the sampling rate only the latest sample is delivered.
+     */
+    public void addListener(Listener listener, long maxIntervalMs, Handler handler) {
+        synchronized (mRegistrations) {
+            mRegistrations.add(new Registration(listener, maxIntervalMs, handler));
+        }
+        //resample right away so the new consumer does not wait for a full idle interval
+        mHandler.removeCallbacks(mSampleRunnable);
+        mHandler.post(mSampleRunnable);
+    }
+
+    public void removeListener(Listener listener) {
+        synchronized (mRegistrations) {
+            for (int i = mRegistrations.size() - 1; i >= 0; i--) {
+                Registration registration = mRegistrations.get(i);
+                if (registration.mListener == listener) {
+                    registration.mHandler.removeCallbacks(registration);
+                    mRegistrations.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Multiplies the shortest sampling interval by {@code scale}, boosts included, e.g. to let
+     * the board cool down.
+     */
+    public void setThrottle(int scale) {
+        mMinInterval = FAST_INTERVAL_MS * scale;
+    }
+
+    /**
+     * Samples at the fastest rate for the next {@code durationMs}, e.g. after a button press.
+     */
+    public void boost(long durationMs) {
+        mBoostUntil = SystemClock.elapsedRealtime() + durationMs;
+        mHandler.removeCallbacks(mSampleRunnable);
+        mHandler.post(mSampleRunnable);
+    }
+
+    /**
+     * Sets the conditioning applied to every sample before it is delivered.
+     */
+    public void setFilters(final FilterChain temperatureFilter, final FilterChain pressureFilter) {
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                mTemperatureFilter = temperatureFilter;
+                mPressureFilter = pressureFilter;
+            }
+        });
+    }
+
+    /**
+     * Sets the correction applied to the filtered temperature, null for none.
+     */
+    public void setCompensator(final ThermalCompensator compensator) {
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                mCompensator = compensator;
+            }
+        });
+    }
+
+    public long getSampleCount() {
+        return mSampleCount;
+    }
+
+    public void start() {
+        mHandler.post(mSampleRunnable);
+    }
+
+    @Override
+    public void close() {
+        mHandler.removeCallbacksAndMessages(null);
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    mSensor.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing BMP280", e);
+                }
+            }
+        });
+        mHandlerThread.quitSafely();
+    }
+
+    //triggers a forced-mode conversion, then reads it back once the conversion time elapsed
+    private final Runnable mSampleRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            mHandler.removeCallbacks(mReadRunnable);
+            try {
+                mInterval = computeInterval();
+                configureOversampling(mInterval);
+                mSensor.setMode(Bmx280.MODE_FORCED);
+                mHandler.postDelayed(mReadRunnable,
+                        measurementTimeMs(mTemperatureOversampling, mPressureOversampling));
+            } catch (IOException e) {
+                Log.e(TAG, "Error starting BMP280 conversion", e);
+                mHandler.postDelayed(mSampleRunnable, mInterval);
+            }
+        }
+    };
+
+    private final Runnable mReadRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            try {
+                float[] values = mSensor.readTemperatureAndPressure();
+                long timestampNs = SystemClock.elapsedRealtimeNanos();
+                mSampleCount++;
+                //adapt on the raw values: a spike is a reason to look closer, not to ignore
+                adapt(values[0], values[1]);
+                float temperature = mTemperatureFilter.filter(values[0]);
+                float pressure = mPressureFilter.filter(values[1]);
+                if (mCompensator != null) {
+                    temperature = mCompensator.compensate(temperature);
+                }
+                if (mCompensator != null && mSampleCount % REPORT_LOG_PERIOD == 0) {
+                    Log.d(TAG, mCompensator.report());
+                }
+                dispatch(temperature, pressure, timestampNs);
+            } catch (IOException | IllegalStateException e) {
+                Log.e(TAG, "Error reading BMP280", e);
+            }
+            mHandler.postDelayed(mSampleRunnable, mInterval);
+        }
+    };
+
+    private long computeInterval() {
+        long minInterval = mMinInterval;
+        if (SystemClock.elapsedRealtime() < mBoostUntil) {
+            return minInterval;
+        }
+        long interval = IDLE_INTERVAL_MS;
+        synchronized (mRegistrations) {
+            for (Registration registration : mRegistrations) {
+                interval = Math.min(interval, registration.mMaxInterval);
+            }
+        }
+        return Math.max(minInterval, Math.min(interval, mAdaptiveInterval));
+    }
+
+    //halve the interval while values change fast, back off exponentially when they are stable
+    private void adapt(float temperature, float pressure) {
+        boolean fast = Math.abs(temperature - mPreviousTemperature) > FAST_TEMPERATURE_DELTA
+                || Math.abs(pressure - mPreviousPressure) > FAST_PRESSURE_DELTA;
+        if (fast) {
+            mAdaptiveInterval = Math.max(FAST_INTERVAL_MS, mInterval / 2);
+        } else {
+            mAdaptiveInterval = Math.min(IDLE_INTERVAL_MS, mAdaptiveInterval * 2);
+        }
+        mPreviousTemperature = temperature;
+        mPreviousPressure = pressure;
+    }
+
+    // Oversampling settings follow the BMP280 datasheet recommendations: low oversampling
+    // keeps each conversion short when sampling fast, while at "weather monitoring" rates the
+    // sensor is asleep almost all the time and can afford the high resolution modes.
+    private void configureOversampling(long interval) throws IOException {
+        int temperatureOversampling;
+        int pressureOversampling;
+        if (interval <= 1000) {
+            temperatureOversampling = Bmx280.OVERSAMPLING_1X;
+            pressureOversampling = Bmx280.OVERSAMPLING_2X;
+        } else if (interval <= 10000) {
+            temperatureOversampling = Bmx280.OVERSAMPLING_1X;
+            pressureOversampling = Bmx280.OVERSAMPLING_4X;
+        } else {
+            temperatureOversampling = Bmx280.OVERSAMPLING_2X;
+            pressureOversampling = Bmx280.OVERSAMPLING_16X;
+        }
+        if (temperatureOversampling != mTemperatureOversampling) {
+            mSensor.setTemperatureOversampling(temperatureOversampling);
+            mTemperatureOversampling = temperatureOversampling;
+        }
+        if (pressureOversampling != mPressureOversampling) {
+            mSensor.setPressureOversampling(pressureOversampling);
+            mPressureOversampling = pressureOversampling;
+        }
+    }
+
+    // Maximum conversion time from the BMP280 datasheet (section 9.1), rounded up:
+    // 1.25 + 2.3 * T_oversampling + 2.3 * P_oversampling + 0.575 ms
+    private static long measurementTimeMs(int temperatureOversampling, int pressureOversampling) {
+        int t = 1 << (temperatureOversampling - 1);
+        int p = 1 << (pressureOversampling - 1);
+        return (long) Math.ceil(1.25 + 2.3 * t + 2.3 * p + 0.575);
+    }
+
+    private void dispatch(float temperature, float pressure, long timestampNs) {
+        synchronized (mRegistrations) {
+            for (Registration registration : mRegistrations) {
+                registration.deliver(temperature, pressure, timestampNs);
+            }
+        }
+    }
+
+    //one per consumer, reposted to the consumer looper; coalesces samples the consumer missed
+    private static class Registration implements Runnable {
+        private final Listener mListener;
+        private final long mMaxInterval;
+        private final Handler mHandler;
+
+        private float mTemperature;
+        private float mPressure;
+        private long mTimestampNs;
+        private boolean mPending;
+
+        Registration(Listener listener, long maxInterval, Handler handler) {
+            mListener = listener;
+            mMaxInterval = maxInterval;
+            mHandler = handler;
+        }
+
+        synchronized void deliver(float temperature, float pressure, long timestampNs) {
+            mTemperature = temperature;
+            mPressure = pressure;
+            mTimestampNs = timestampNs;
+            if (!mPending) {
+                mPending = true;
+                mHandler.post(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            float temperature;
+            float pressure;
+            long timestampNs;
+            synchronized (this) {
+                temperature = mTemperature;
+                pressure = mPressure;
+                timestampNs = mTimestampNs;
+                mPending = false;
+            }
+            mListener.onSample(temperature, pressure, timestampNs);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.Scheduler;
+import rx.functions.Func1;
+import rx.functions.Func2;
+import rx.schedulers.Schedulers;
+import rx.subjects.BehaviorSubject;
+import rx.subjects.SerializedSubject;
+import rx.subjects.Subject;
+
+/**
+ * Hot streams of the station readings. Temperature and pressure are pushed from the
+ * {@link SamplingScheduler} through {@link #onSample}, the CPU temperature is polled from sysfs on
+ * the io scheduler. {@link #readings()} combines the latest of all of them, so that every
+ * consumer picks its own rate with its own operators, independently of the sensor rate.
+ * <p>
+ * The streams are not backpressured at the source: consumers slower than the sensors must
+ * apply a bounded strategy ({@code sample}, {@code onBackpressureLatest}...).
+ */
+public class SensorStreams {
+    private static final String TAG = SensorStreams.class.getSimpleName();
+
+    public static final String CPU_FILE_PATH = "/sys/class/thermal/thermal_zone0/temp";
+    private static final long REFERENCE_POLL_INTERVAL_MS = 60000;
+
+    /**
+     * One set of readings; the CPU temperature is NaN until it has been read once.
+     */
+    public static final class Reading {
+        private final float mTemperature;
+        private final float mPressure;
+        private final float mCpuTemperature;
+        private final long mTimestampNs;
+
+        Reading(float temperature, float pressure, float cpuTemperature, long timestampNs) {
+            mTemperature = temperature;
+            mPressure = pressure;
+            mCpuTemperature = cpuTemperature;
+            mTimestampNs = timestampNs;
+        }
+
+        public float getTemperature() {
+            return mTemperature;
+        }
+
+        public float getPressure() {
+            return mPressure;
+        }
+
+        public float getCpuTemperature() {
+            return mCpuTemperature;
+        }
+
+        /** Acquisition time of the temperature and pressure, elapsedRealtimeNanos base. */
+        public long getTimestampNs() {
+            return mTimestampNs;
+        }
+    }
+
+    private final Subject<Reading, Reading> mSamples =
+            new SerializedSubject<>(BehaviorSubject.<Reading>create());
+    private final Observable<Float> mCpuTemperature;
+    private final Observable<Reading> mReadings;
+    private final Scheduler mScheduler;
+
+    /**
+     * @param scheduler where the CPU temperature is delivered; temperature and pressure are
+     *                  delivered on the thread calling {@link #onSample}
+     * @param configs   the CPU poll interval follows {@link StationConfig#getCpuPollIntervalMs()}
+     */
+    public SensorStreams(Scheduler scheduler, Observable<StationConfig> configs) {
+        mScheduler = scheduler;
+        mCpuTemperature = configs
+                .map(new Func1<StationConfig, Long>() {
+
+                    @Override
+                    public Long call(StationConfig config) {
+                        return config.getCpuPollIntervalMs();
+                    }
+                })
+                .distinctUntilChanged()
+                .switchMap(new Func1<Long, Observable<Float>>() {
+
+                    @Override
+                    public Observable<Float> call(Long intervalMs) {
+                        return poll(CPU_FILE_PATH, intervalMs);
+                    }
+                })
+                //one poller however many subscribers, late ones get the last value right away
+                .replay(1)
+                .refCount();
+
+        mReadings = Observable.combineLatest(mSamples, mCpuTemperature.startWith(Float.NaN),
+                new Func2<Reading, Float, Reading>() {
+
+                    @Override
+                    public Reading call(Reading sample, Float cpuTemperature) {
+                        return new Reading(sample.mTemperature, sample.mPressure, cpuTemperature,
+                                sample.mTimestampNs);
+                    }
+                });
+    }
+
+    //reads a temperature file on the io scheduler, delivers it on mScheduler
+    private Observable<Float> poll(final String path, long intervalMs) {
+        return Observable.interval(0, intervalMs, TimeUnit.MILLISECONDS, Schedulers.io())
+                .onBackpressureDrop()
+                .map(new Func1<Long, Float>() {
+
+                    @Override
+                    public Float call(Long tick) {
+                        return readTemperature(path);
+                    }
+                })
+                .filter(new Func1<Float, Boolean>() {
+
+                    @Override
+                    public Boolean call(Float temperature) {
+                        return !Float.isNaN(temperature);
+                    }
+                })
+                .onBackpressureLatest()
+                .observeOn(mScheduler);
+    }
+
+    // Temperature files hold milli celsius, either alone (thermal zones) or after "t=" on the
+    // last line (1-Wire probes). NaN when it cannot be read, so that a transient error does not
+    // terminate the stream.
+    private static float readTemperature(String path) {
+        try (RandomAccessFile reader = new RandomAccessFile(path, "r")) {
+            String first = reader.readLine();
+            String last = first;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                last = line;
+            }
+            if (first == null) {
+                return Float.NaN;
+            }
+            float temperature = parseTemperature(first, last);
+            if (Float.isNaN(temperature)) {
+                Log.w(TAG, "Discarding temperature from " + path + ": " + first + " / " + last);
+            }
+            return temperature;
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "Error reading temperature from " + path, e);
+            return Float.NaN;
+        }
+    }
+
+    // A 1-Wire probe reports its CRC check on the first line, "... crc=57 YES", and 85000 when
+    // the conversion did not run (power-on value of the scratchpad): both are NaN.
+    static float parseTemperature(String first, String last) {
+        String rawTemperature = last;
+        int t = rawTemperature.indexOf("t=");
+        if (t >= 0) {
+            rawTemperature = rawTemperature.substring(t + 2).trim();
+            if (first == last || !first.trim().endsWith("YES") || rawTemperature.equals("85000")) {
+                return Float.NaN;
+            }
+        }
+        //we want celsius
+        return Float.parseFloat(rawTemperature.trim()) / 1000f;
+    }
+
+    /**
+     * Pushes a new temperature and pressure measurement to the streams.
+     */
+    public void onSample(float temperature, float pressure, long timestampNs) {
+        mSamples.onNext(new Reading(temperature, pressure, Float.NaN, timestampNs));
+    }
+
+    public Observable<Float> temperature() {
+        return mSamples.map(new Func1<Reading, Float>() {
+
+            @Override
+            public Float call(Reading reading) {
+                return reading.mTemperature;
+            }
+        });
+    }
+
+    public Observable<Float> pressure() {
+        return mSamples.map(new Func1<Reading, Float>() {
+
+            @Override
+            public Float call(Reading reading) {
+                return reading.mPressure;
+            }
+        });
+    }
+
+    public Observable<Float> cpuTemperature() {
+        return mCpuTemperature;
+    }
+
+    /**
+     * Polls a reference ambient temperature probe, e.g. the {@code w1_slave} file of a DS18B20.
+     */
+    public Observable<Float> referenceTemperature(String path) {
+        return poll(path, REFERENCE_POLL_INTERVAL_MS);
+    }
+
+    /**
+     * The latest temperature, pressure and CPU temperature, each time a sample arrives or the
+     * CPU temperature is read.
+     */
+    public Observable<Reading> readings() {
+        return mReadings;
+    }
+
+    /**
+     * Completes the streams.
+     */
+    public void close() {
+        mSamples.onCompleted();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * One stage of a {@link FilterChain}. Implementations keep their state in fixed primitive
+ * arrays allocated up front, so filtering a sample never allocates.
+ */
+public interface SignalFilter {
+
+    float filter(float value);
+
+    void reset();
+
+    /**
+     * Running median over the last {@code window} samples. Removes single-sample spikes
+     * without smoothing real steps. A NaN sample is not part of the window: the previous
+     * median is returned instead.
+     */
+    class Median implements SignalFilter {
+        private final float[] mRing;
+        private final float[] mSorted;
+        private int mNext;
+        private int mSize;
+
+        public Median(int window) {
+            if (window < 1) {
+                throw new IllegalArgumentException("Invalid median window: " + window);
+            }
+            mRing = new float[window];
+            mSorted = new float[window];
+        }
+
+        @Override
+        public float filter(float value) {
+            if (Float.isNaN(value)) {
+                //NaN compares unequal to everything, it could never be found and removed again
+                return mSize == 0 ? Float.NaN : mSorted[mSize / 2];
+            }
+            if (mSize == mRing.length) {
+                remove(mRing[mNext]);
+            }
+            insert(value);
+            mRing[mNext] = value;
+            mNext = (mNext + 1) % mRing.length;
+            return mSorted[mSize / 2];
+        }
+
+        //both O(window), which is tiny: cheaper than any heap based structure here
+        private void remove(float value) {
+            int i = 0;
+            while (i < mSize - 1 && mSorted[i] != value) {
+                i++;
+            }
+            System.arraycopy(mSorted, i + 1, mSorted, i, mSize - 1 - i);
+            mSize--;
+        }
+
+        private void insert(float value) {
+            int i = mSize;
+            while (i > 0 && mSorted[i - 1] > value) {
+                mSorted[i] = mSorted[i - 1];
+                i--;
+            }
+            mSorted[i] = value;
+            mSize++;
+        }
+
+        @Override
+        public void reset() {
+            mNext = 0;
+            mSize = 0;
+        }
+    }
+
+    /**
+     * Exponential moving average: {@code out = out + alpha * (in - out)}.
+     */
+    class Ema implements SignalFilter {
+        private final float mAlpha;
+        private float mValue = Float.NaN;
+
+        public Ema(float alpha) {
+            if (alpha <= 0 || alpha > 1) {
+                throw new IllegalArgumentException("Invalid EMA alpha: " + alpha);
+            }
+            mAlpha = alpha;
+        }
+
+        @Override
+        public float filter(float value) {
+            mValue = Float.isNaN(mValue) ? value : mValue + mAlpha * (value - mValue);
+            return mValue;
+        }
+
+        @Override
+        public void reset() {
+            mValue = Float.NaN;
+        }
+    }
+
+    /**
+     * Rejects samples further than {@code maxStep} from the last accepted one, repeating the
+     * last accepted value instead. After {@code maxRejected} rejections in a row the new level
+     * is accepted, so a real step change only costs a few samples.
+     */
+    class OutlierRejection implements SignalFilter {
+        private final float mMaxStep;
+        private final int mMaxRejected;
+        private float mLast = Float.NaN;
+        private int mRejected;
+
+        public OutlierRejection(float maxStep, int maxRejected) {
+            mMaxStep = maxStep;
+            mMaxRejected = maxRejected;
+        }
+
+        @Override
+        public float filter(float value) {
+            if (!Float.isNaN(mLast) && Math.abs(value - mLast) > mMaxStep
+                    && mRejected < mMaxRejected) {
+                mRejected++;
+                return mLast;
+            }
+            mRejected = 0;
+            mLast = value;
+            return value;
+        }
+
+        @Override
+        public void reset() {
+            mLast = Float.NaN;
+            mRejected = 0;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Last known state of the station, checkpointed periodically to a small fixed-layout file so
+ * that the display, the led strip and the publisher start with meaningful values after a
+ * restart instead of 0 or NaN.
+ * The file is replaced atomically (write to a temporary file, sync, rename) and read back
+ * with a single memory mapping on startup.
+ */
+public class StateSnapshot {
+    private static final String TAG = StateSnapshot.class.getSimpleName();
+
+    private static final int MAGIC = 0x57535331; // "WSS1"
+    private static final int VERSION = 3;
+
+    // Fixed layout, big endian:
+    //   int magic, int version, long savedAtMs,
+    //   float temperature, float pressure, float cpuTemperature,
+    //   long rollupStartMs, rollup temperature, rollup pressure,
+    //   forecaster state, thermal compensator state,
+    //   long crc32 of all the previous bytes
+    private static final int SIZE = 4 + 4 + 8 + 3 * 4 + 8 + 2 * Rollup.SIZE
+            + BarometricForecaster.STATE_SIZE + ThermalCompensator.STATE_SIZE + 8;
+
+    //readings older than this are not worth showing after a restart
+    private static final long MAX_READING_AGE_MS = 60 * 60 * 1000;
+    private static final long ROLLUP_PERIOD_MS = 24 * 60 * 60 * 1000;
+    private static final long CHECKPOINT_INTERVAL_MS = 60 * 1000;
+
+    /**
+     * Min, max and mean of one channel since {@link #getRollupStartMs()}.
+     */
+    public static class Rollup {
+        static final int SIZE = 4 + 4 + 8 + 4;
+
+        private float mMin = Float.POSITIVE_INFINITY;
+        private float mMax = Float.NEGATIVE_INFINITY;
+        private double mSum;
+        private int mCount;
+
+        void add(float value) {
+            mMin = Math.min(mMin, value);
+            mMax = Math.max(mMax, value);
+            mSum += value;
+            mCount++;
+        }
+
+        void reset() {
+            mMin = Float.POSITIVE_INFINITY;
+            mMax = Float.NEGATIVE_INFINITY;
+            mSum = 0;
+            mCount = 0;
+        }
+
+        public float getMin() {
+            return mCount == 0 ? Float.NaN : mMin;
+        }
+
+        public float getMax() {
+            return mCount == 0 ? Float.NaN : mMax;
+        }
+
+        public float getMean() {
+            return mCount == 0 ? Float.NaN : (float) (mSum / mCount);
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        void copyFrom(Rollup other) {
+            mMin = other.mMin;
+            mMax = other.mMax;
+            mSum = other.mSum;
+            mCount = other.mCount;
+        }
+
+        void write(ByteBuffer buffer) {
+            buffer.putFloat(mMin).putFloat(mMax).putDouble(mSum).putInt(mCount);
+        }
+
+        void read(ByteBuffer buffer) {
+            mMin = buffer.getFloat();
+            mMax = buffer.getFloat();
+            mSum = buffer.getDouble();
+            mCount = buffer.getInt();
+        }
+    }
+
+    private final File mFile;
+    private final BarometricForecaster mForecaster;
+    private final ThermalCompensator mCompensator;
+    private final File mTempFile;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(SIZE);
+    private final CRC32 mCrc = new CRC32();
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+
+    //guarded by this
+    private float mTemperature = Float.NaN;
+    private float mPressure = Float.NaN;
+    private float mCpuTemperature = Float.NaN;
+    private long mSavedAtMs;
+    private long mRollupStartMs;
+    private final Rollup mTemperatureRollup = new Rollup();
+    private final Rollup mPressureRollup = new Rollup();
+
+    /**
+     * Loads the last checkpoint from {@code file}, if there is a valid one, restoring the
+     * pressure history of {@code forecaster} and the model of {@code compensator} too.
+     */
+    public StateSnapshot(File file, BarometricForecaster forecaster, ThermalCompensator compensator) {
+        mFile = file;
+        mForecaster = forecaster;
+        mCompensator = compensator;
+        mTempFile = new File(file.getPath() + ".tmp");
+        mRollupStartMs = System.currentTimeMillis();
+        if (mFile.length() == SIZE) {
+            try {
+                load();
+            } catch (IOException e) {
+                Log.e(TAG, "Error loading state snapshot", e);
+            }
+        }
+    }
+
+    private void load() throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            MappedByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, SIZE);
+            if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+                Log.w(TAG, "Ignoring state snapshot with unknown layout");
+                return;
+            }
+            mCrc.reset();
+            for (int i = 0; i < SIZE - 8; i++) {
+                mCrc.update(map.get(i));
+            }
+            if (mCrc.getValue() != map.getLong(SIZE - 8)) {
+                Log.w(TAG, "Ignoring corrupted state snapshot");
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long savedAtMs = map.getLong();
+            float temperature = map.getFloat();
+            float pressure = map.getFloat();
+            float cpuTemperature = map.getFloat();
+            //a negative age means the clock went back (e.g. no NTP sync yet after a reboot):
+            //the real age is unknown, so nothing is taken as fresh
+            if (isRecent(now, savedAtMs, MAX_READING_AGE_MS)) {
+                mSavedAtMs = savedAtMs;
+                mTemperature = temperature;
+                mPressure = pressure;
+                mCpuTemperature = cpuTemperature;
+            }
+            long rollupStartMs = map.getLong();
+            if (isRecent(now, rollupStartMs, ROLLUP_PERIOD_MS)) {
+                mRollupStartMs = rollupStartMs;
+                mTemperatureRollup.read(map);
+                mPressureRollup.read(map);
+            } else {
+                map.position(map.position() + 2 * Rollup.SIZE);
+            }
+            mForecaster.readState(map, now);
+            mCompensator.readState(map);
+        }
+    }
+
+    private static boolean isRecent(long nowMs, long timeMs, long maxAgeMs) {
+        long age = nowMs - timeMs;
+        return age >= 0 && age < maxAgeMs;
+    }
+
+    /**
+     * Starts checkpointing the state to disk periodically on a background thread.
+     */
+    public void start() {
+        mHandlerThread = new HandlerThread("StateSnapshotThread");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        mHandler.postDelayed(mCheckpointRunnable, CHECKPOINT_INTERVAL_MS);
+    }
+
+    /**
+     * Writes a last checkpoint and stops the background thread.
+     */
+    public void close() {
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mCheckpointRunnable);
+            mHandler.post(new Runnable() {
+
+                @Override
+                public void run() {
+                    checkpoint();
+                }
+            });
+            mHandlerThread.quitSafely();
+        }
+    }
+
+    private final Runnable mCheckpointRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            checkpoint();
+            mHandler.postDelayed(mCheckpointRunnable, CHECKPOINT_INTERVAL_MS);
+        }
+    };
+
+    private void checkpoint() {
+        synchronized (this) {
+            mBuffer.clear();
+            mBuffer.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+            mBuffer.putFloat(mTemperature).putFloat(mPressure).putFloat(mCpuTemperature);
+            mBuffer.putLong(mRollupStartMs);
+            mTemperatureRollup.write(mBuffer);
+            mPressureRollup.write(mBuffer);
+        }
+        mForecaster.writeState(mBuffer);
+        mCompensator.writeState(mBuffer);
+        mCrc.reset();
+        mCrc.update(mBuffer.array(), 0, mBuffer.position());
+        mBuffer.putLong(mCrc.getValue());
+        mBuffer.flip();
+
+        try (RandomAccessFile file = new RandomAccessFile(mTempFile, "rw")) {
+            file.setLength(0);
+            file.getChannel().write(mBuffer);
+            file.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing state snapshot", e);
+            return;
+        }
+        if (!mTempFile.renameTo(mFile)) {
+            Log.e(TAG, "Error replacing state snapshot");
+        }
+    }
+
+    public synchronized void onSample(float temperature, float pressure) {
+        mTemperature = temperature;
+        mPressure = pressure;
+        long now = System.currentTimeMillis();
+        if (now - mRollupStartMs >= ROLLUP_PERIOD_MS) {
+            mRollupStartMs = now;
+            mTemperatureRollup.reset();
+            mPressureRollup.reset();
+        }
+        mTemperatureRollup.add(temperature);
+        mPressureRollup.add(pressure);
+    }
+
+    public synchronized void onCpuTemperature(float cpuTemperature) {
+        mCpuTemperature = cpuTemperature;
+    }
+
+    /**
+     * Wall clock time the restored readings were saved at, 0 if none were restored. Only
+     * meaningful until the first sample.
+     */
+    public synchronized long getSavedAtMs() {
+        return mSavedAtMs;
+    }
+
+    /** Last temperature, or NaN if unknown. */
+    public synchronized float getTemperature() {
+        return mTemperature;
+    }
+
+    /** Last pressure, or NaN if unknown. */
+    public synchronized float getPressure() {
+        return mPressure;
+    }
+
+    /** Last CPU temperature, or NaN if unknown. */
+    public synchronized float getCpuTemperature() {
+        return mCpuTemperature;
+    }
+
+    public synchronized long getRollupStartMs() {
+        return mRollupStartMs;
+    }
+
+    /** Copies the temperature rollup into {@code rollup}. */
+    public synchronized void getTemperatureRollup(Rollup rollup) {
+        rollup.copyFrom(mTemperatureRollup);
+    }
+
+    /** Copies the pressure rollup into {@code rollup}. */
+    public synchronized void getPressureRollup(Rollup rollup) {
+        rollup.copyFrom(mPressureRollup);
+    }
+}
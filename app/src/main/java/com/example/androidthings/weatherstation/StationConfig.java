@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+
+/**
+ * Tunable parameters of the pipeline, immutable. A new version comes as a JSON object on the
+ * config topic of the device, e.g.
+ * <pre>
+ *     {"version": 3, "publish_interval_ms": 60000, "display_interval_ms": 5000}
+ * </pre>
+ * Missing keys keep their current value.
+ */
+public final class StationConfig {
+
+    //ThingSpeak rejects updates more frequent than every 15 seconds, the channel rate limit of
+    //the publisher keeps a margin on top
+    private static final long MIN_PUBLISH_INTERVAL_MS = 16000;
+    private static final long MIN_INTERVAL_MS = 100;
+
+    public static final StationConfig DEFAULT = new StationConfig(0, 20000, 2000, 1000, 965f, 1035f);
+
+    private final int mVersion;
+    private final long mPublishIntervalMs;
+    private final long mDisplayIntervalMs;
+    private final long mCpuPollIntervalMs;
+    private final float mBarometerRangeLow;
+    private final float mBarometerRangeHigh;
+
+    private StationConfig(int version, long publishIntervalMs, long displayIntervalMs,
+            long cpuPollIntervalMs, float barometerRangeLow, float barometerRangeHigh) {
+        mVersion = version;
+        mPublishIntervalMs = publishIntervalMs;
+        mDisplayIntervalMs = displayIntervalMs;
+        mCpuPollIntervalMs = cpuPollIntervalMs;
+        mBarometerRangeLow = barometerRangeLow;
+        mBarometerRangeHigh = barometerRangeHigh;
+    }
+
+    /**
+     * Parses a new version of the config on top of {@code base}.
+     *
+     * @throws IllegalArgumentException if the message is not valid
+     */
+    public static StationConfig parse(String message, StationConfig base) {
+        StationConfig config;
+        try {
+            JSONObject json = new JSONObject(message);
+            config = new StationConfig(json.getInt("version"),
+                    json.optLong("publish_interval_ms", base.mPublishIntervalMs),
+                    json.optLong("display_interval_ms", base.mDisplayIntervalMs),
+                    json.optLong("cpu_poll_interval_ms", base.mCpuPollIntervalMs),
+                    (float) json.optDouble("barometer_range_low", base.mBarometerRangeLow),
+                    (float) json.optDouble("barometer_range_high", base.mBarometerRangeHigh));
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Invalid config: " + message, e);
+        }
+        if (config.mPublishIntervalMs < MIN_PUBLISH_INTERVAL_MS
+                || config.mDisplayIntervalMs < MIN_INTERVAL_MS
+                || config.mCpuPollIntervalMs < MIN_INTERVAL_MS
+                || !(config.mBarometerRangeLow < config.mBarometerRangeHigh)) {
+            throw new IllegalArgumentException("Config out of range: " + message);
+        }
+        return config;
+    }
+
+    /**
+     * The config as a message {@link #parse} reads back, with every key.
+     */
+    public String toJson() {
+        return String.format(Locale.US, "{\"version\": %d, \"publish_interval_ms\": %d, "
+                        + "\"display_interval_ms\": %d, \"cpu_poll_interval_ms\": %d, "
+                        + "\"barometer_range_low\": %s, \"barometer_range_high\": %s}",
+                mVersion, mPublishIntervalMs, mDisplayIntervalMs, mCpuPollIntervalMs,
+                Float.toString(mBarometerRangeLow), Float.toString(mBarometerRangeHigh));
+    }
+
+    /**
+     * The same config with the publish and display intervals multiplied by {@code scale}. The
+     * CPU poll interval is kept, it is what tells when the board cools down.
+     */
+    public StationConfig scaled(int scale) {
+        if (scale == 1) {
+            return this;
+        }
+        return new StationConfig(mVersion, mPublishIntervalMs * scale, mDisplayIntervalMs * scale,
+                mCpuPollIntervalMs, mBarometerRangeLow, mBarometerRangeHigh);
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /** How often the readings are published. */
+    public long getPublishIntervalMs() {
+        return mPublishIntervalMs;
+    }
+
+    /** How often the display is refreshed, and the BMP280 sampled for it. */
+    public long getDisplayIntervalMs() {
+        return mDisplayIntervalMs;
+    }
+
+    public long getCpuPollIntervalMs() {
+        return mCpuPollIntervalMs;
+    }
+
+    /** Pressure shown by an empty led strip, in hPa. */
+    public float getBarometerRangeLow() {
+        return mBarometerRangeLow;
+    }
+
+    /** Pressure shown by a full led strip, in hPa. */
+    public float getBarometerRangeHigh() {
+        return mBarometerRangeHigh;
+    }
+
+    @Override
+    public String toString() {
+        return "StationConfig v" + mVersion + ": publish every " + mPublishIntervalMs
+                + " ms, display every " + mDisplayIntervalMs + " ms, CPU poll every "
+                + mCpuPollIntervalMs + " ms, barometer " + mBarometerRangeLow + "-"
+                + mBarometerRangeHigh + " hPa";
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.os.SystemClock;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Corrects the temperature of the BMP280 for the heat of the board it sits on. The sensor is
+ * modelled as reading the ambient temperature plus a bias
+ * <pre>
+ *     bias = a + b (cpu - sensor) + c dcpu/dt
+ * </pre>
+ * with the CPU temperature in degrees Celsius and its rate of change in degrees per minute.
+ * The model starts from the fixed correction the station used to apply, and the coefficients
+ * are learned online with recursive least squares each time a reference ambient temperature
+ * is available (e.g. a probe outside of the enclosure). Every update is O(1) on fixed size
+ * arrays, no history is kept.
+ * <p>
+ * A reference reading far off the model, {@link #OUTLIER_RMS} times the recent fit error, is
+ * skipped; if it keeps happening the model is the one off, and learns afresh. The covariance is
+ * bounded: with forgetting and readings that hardly vary (a steady CPU load keeps the slope at
+ * 0) it would otherwise grow without limit and the next odd reading would throw the
+ * coefficients off.
+ * <p>
+ * Thread safe: samples, CPU temperatures and reference readings may come from different threads.
+ */
+public class ThermalCompensator {
+
+    private static final int N = 3;
+
+    //the former fixed correction, ambient = (sensor - k cpu) / (1 - k) with k = 0.55, is a bias
+    //of k / (1 - k) (cpu - sensor)
+    private static final double SEED_CPU_GAIN = 0.55 / (1 - 0.55);
+    //forgetting factor: roughly the last 1000 reference readings weigh in
+    private static final double FORGETTING = 0.999;
+    //initial covariance, how far the seed may be from the truth
+    private static final double INITIAL_COVARIANCE = 10;
+    //bound of the covariance trace, the initial one
+    private static final double MAX_TRACE = N * INITIAL_COVARIANCE;
+    //time constant of the CPU temperature rate of change, smoothing of the fit error
+    private static final long SLOPE_TAU_MS = 60000;
+    private static final double ERROR_ALPHA = 0.05;
+    //a reference reading is an outlier beyond OUTLIER_RMS times the fit error, no less than
+    //MIN_RMS degrees, once the fit error is known from MIN_GATED_UPDATES readings; after
+    //MAX_OUTLIERS in a row the model is the one off and learns again
+    static final double OUTLIER_RMS = 4;
+    private static final double MIN_RMS = 0.25;
+    private static final long MIN_GATED_UPDATES = 20;
+    private static final int MAX_OUTLIERS = 10;
+
+    /** Size of the state written by {@link #writeState}. */
+    public static final int STATE_SIZE = 8 + (N + N * N) * 8;
+
+    //guarded by this
+    private final double[] mTheta = new double[N];
+    private final double[] mCovariance = new double[N * N];
+    private final double[] mX = new double[N];
+    private final double[] mPx = new double[N];
+    private long mUpdates;
+    private double mSquaredError = Double.NaN;
+    private int mOutliers;
+    private long mRejected;
+
+    private float mCpuTemperature = Float.NaN;
+    private final RateOfChange mCpuSlope = new RateOfChange(SLOPE_TAU_MS);
+    private float mLastSensor = Float.NaN;
+
+    private long mCostNs;
+    private long mCompensations;
+
+    public ThermalCompensator() {
+        reset();
+    }
+
+    private void reset() {
+        mTheta[0] = 0;
+        mTheta[1] = SEED_CPU_GAIN;
+        mTheta[2] = 0;
+        resetCovariance();
+        mUpdates = 0;
+        mSquaredError = Double.NaN;
+        mOutliers = 0;
+    }
+
+    private void resetCovariance() {
+        for (int i = 0; i < N * N; i++) {
+            mCovariance[i] = i % (N + 1) == 0 ? INITIAL_COVARIANCE : 0;
+        }
+    }
+
+    /**
+     * @param timeMs time of the reading, {@link SystemClock#elapsedRealtime()} base
+     */
+    public synchronized void onCpuTemperature(float cpuTemperature, long timeMs) {
+        if (Float.isNaN(cpuTemperature)) {
+            return;
+        }
+        mCpuSlope.update(cpuTemperature, timeMs);
+        mCpuTemperature = cpuTemperature;
+    }
+
+    //fills mX for a sensor reading, false if the CPU temperature is unknown
+    private boolean features(float sensor) {
+        if (Float.isNaN(mCpuTemperature)) {
+            return false;
+        }
+        mX[0] = 1;
+        mX[1] = mCpuTemperature - sensor;
+        mX[2] = mCpuSlope.get();
+        return true;
+    }
+
+    private double bias() {
+        return mTheta[0] * mX[0] + mTheta[1] * mX[1] + mTheta[2] * mX[2];
+    }
+
+    /**
+     * @return the ambient temperature for a sensor reading, the reading itself as long as the
+     * CPU temperature is unknown
+     */
+    public synchronized float compensate(float sensor) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        mLastSensor = sensor;
+        if (Float.isNaN(sensor) || !features(sensor)) {
+            return sensor;
+        }
+        float ambient = (float) (sensor - bias());
+        mCostNs += SystemClock.elapsedRealtimeNanos() - start;
+        mCompensations++;
+        return ambient;
+    }
+
+    /**
+     * Learns from a reference ambient temperature, taken about when the last sample was
+     * compensated.
+     */
+    public synchronized void onReference(float ambient) {
+        if (Float.isNaN(ambient) || Float.isNaN(mLastSensor) || !features(mLastSensor)) {
+            return;
+        }
+        double error = (mLastSensor - ambient) - bias();
+        boolean outlier = mUpdates >= MIN_GATED_UPDATES
+                && Math.abs(error) > OUTLIER_RMS * Math.max(MIN_RMS, Math.sqrt(mSquaredError));
+        if (!outlier) {
+            mOutliers = 0;
+        } else if (++mOutliers <= MAX_OUTLIERS) {
+            mRejected++;
+            return;
+        } else if (mOutliers == MAX_OUTLIERS + 1) {
+            //the conditions changed (e.g. the probe or the enclosure moved): learn afresh from
+            //the current coefficients
+            resetCovariance();
+        }
+
+        // k = P x / (lambda + x' P x); theta += k e; P = (P - k x' P) / lambda
+        double denominator = FORGETTING;
+        for (int i = 0; i < N; i++) {
+            double sum = 0;
+            for (int j = 0; j < N; j++) {
+                sum += mCovariance[i * N + j] * mX[j];
+            }
+            mPx[i] = sum;
+            denominator += mX[i] * sum;
+        }
+        for (int i = 0; i < N; i++) {
+            mTheta[i] += mPx[i] / denominator * error;
+        }
+        //P is symmetric, so x' P is (P x)'
+        for (int i = 0; i < N; i++) {
+            for (int j = 0; j < N; j++) {
+                mCovariance[i * N + j] = (mCovariance[i * N + j] - mPx[i] * mPx[j] / denominator) / FORGETTING;
+            }
+        }
+        //forgetting inflates P in the directions the readings do not excite, scale it back
+        double trace = getCovarianceTrace();
+        if (trace > MAX_TRACE) {
+            for (int i = 0; i < N * N; i++) {
+                mCovariance[i] *= MAX_TRACE / trace;
+            }
+        }
+
+        mUpdates++;
+        double squaredError = error * error;
+        mSquaredError = Double.isNaN(mSquaredError)
+                ? squaredError : mSquaredError + ERROR_ALPHA * (squaredError - mSquaredError);
+    }
+
+    /** Recent RMS error of the model against the reference, NaN without reference readings. */
+    public synchronized float getFitRms() {
+        return (float) Math.sqrt(mSquaredError);
+    }
+
+    public synchronized long getUpdateCount() {
+        return mUpdates;
+    }
+
+    /** Reference readings skipped as outliers since the start. */
+    public synchronized long getRejectedCount() {
+        return mRejected;
+    }
+
+    synchronized double getCovarianceTrace() {
+        double trace = 0;
+        for (int i = 0; i < N; i++) {
+            trace += mCovariance[i * N + i];
+        }
+        return trace;
+    }
+
+    public synchronized long getAverageCostNs() {
+        return mCompensations == 0 ? 0 : mCostNs / mCompensations;
+    }
+
+    public synchronized String report() {
+        return String.format(Locale.US,
+                "thermal model: bias = %.3f + %.3f (cpu - sensor) + %.3f dcpu/dt, "
+                        + "%d updates, %d outliers, fit rms %.3f, %d ns per sample",
+                mTheta[0], mTheta[1], mTheta[2], mUpdates, mRejected, getFitRms(),
+                getAverageCostNs());
+    }
+
+    /**
+     * Writes the learned model, so that it survives a restart.
+     */
+    public synchronized void writeState(ByteBuffer buffer) {
+        buffer.putLong(mUpdates);
+        for (int i = 0; i < N; i++) {
+            buffer.putDouble(mTheta[i]);
+        }
+        for (int i = 0; i < N * N; i++) {
+            buffer.putDouble(mCovariance[i]);
+        }
+    }
+
+    /**
+     * Restores the model written by {@link #writeState}, keeps the seed if it is not sane.
+     */
+    public synchronized void readState(ByteBuffer buffer) {
+        mUpdates = buffer.getLong();
+        boolean sane = mUpdates >= 0;
+        for (int i = 0; i < N; i++) {
+            mTheta[i] = buffer.getDouble();
+            sane &= !Double.isNaN(mTheta[i]) && !Double.isInfinite(mTheta[i]);
+        }
+        for (int i = 0; i < N * N; i++) {
+            mCovariance[i] = buffer.getDouble();
+            sane &= !Double.isNaN(mCovariance[i]) && !Double.isInfinite(mCovariance[i]);
+        }
+        for (int i = 0; i < N; i++) {
+            sane &= mCovariance[i * N + i] > 0;
+        }
+        if (!sane) {
+            reset();
+        }
+    }
+}
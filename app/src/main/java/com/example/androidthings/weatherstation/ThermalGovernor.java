@@ -0,0 +1,207 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Locale;
+
+import rx.Observable;
+import rx.subjects.BehaviorSubject;
+import rx.subjects.SerializedSubject;
+import rx.subjects.Subject;
+
+/**
+ * Slows the station down when the board runs hot. The station heats the board it measures: every
+ * sample, display refresh, led strip write and publish costs CPU time, and the BMP280 sits right
+ * next to the CPU. The governor watches the CPU temperature and its rate of change and picks a
+ * {@link Level}, whose scale stretches the intervals of the pipeline.
+ * <p>
+ * The level goes up as soon as the temperature, projected {@link #LOOKAHEAD_MIN} minutes ahead
+ * at the current slope, crosses a threshold. It goes down one step at a time, once the board is
+ * {@link #HYSTERESIS} degrees below the threshold, not warming up and the level has been held
+ * for {@link #MIN_DWELL_MS}, so that it does not flap around a threshold. The slope is estimated
+ * over about {@link #SLOPE_TAU_MS}, see {@link RateOfChange}: the thermal zone moves by 0.5
+ * degree steps, and a single step over a one second poll must not read as 30 degrees per minute.
+ * <p>
+ * Not thread safe: CPU temperatures and reads are expected on one thread.
+ */
+public class ThermalGovernor {
+    private static final String TAG = ThermalGovernor.class.getSimpleName();
+
+    public enum Level {
+        NORMAL(Float.NEGATIVE_INFINITY, 1),
+        WARM(60f, 2),
+        HOT(70f, 4),
+        //the Raspberry Pi 3 firmware throttles the CPU itself at 80 degrees
+        CRITICAL(77f, 8);
+
+        private final float mThreshold;
+        private final int mScale;
+
+        Level(float threshold, int scale) {
+            mThreshold = threshold;
+            mScale = scale;
+        }
+
+        /** CPU temperature from which the level applies, in degrees Celsius. */
+        public float getThreshold() {
+            return mThreshold;
+        }
+
+        /** Factor the intervals of the pipeline are multiplied by. */
+        public int getScale() {
+            return mScale;
+        }
+    }
+
+    private static final Level[] LEVELS = Level.values();
+
+    static final float LOOKAHEAD_MIN = 2;
+    static final float HYSTERESIS = 5;
+    static final long MIN_DWELL_MS = 60000;
+    //time constant of the rate of change, whatever the CPU poll interval
+    static final long SLOPE_TAU_MS = 60000;
+
+    private final Subject<Level, Level> mLevels =
+            new SerializedSubject<>(BehaviorSubject.create(Level.NORMAL));
+    private Level mLevel = Level.NORMAL;
+    private long mLevelSinceMs;
+
+    private final RateOfChange mSlope = new RateOfChange(SLOPE_TAU_MS);
+
+    //time and process CPU time spent in each level, up to mAccountedMs / mAccountedCpuMs
+    private final long[] mTimeInLevelMs = new long[LEVELS.length];
+    private final long[] mCpuInLevelMs = new long[LEVELS.length];
+    private long mAccountedMs;
+    private long mAccountedCpuMs;
+
+    public ThermalGovernor() {
+        mAccountedMs = SystemClock.elapsedRealtime();
+        mAccountedCpuMs = Process.getElapsedCpuTime();
+        mLevelSinceMs = mAccountedMs;
+    }
+
+    /**
+     * @param timeMs time of the reading, {@link SystemClock#elapsedRealtime()} base
+     */
+    public void onCpuTemperature(float temperature, long timeMs) {
+        if (Float.isNaN(temperature)) {
+            return;
+        }
+        float slope = mSlope.update(temperature, timeMs);
+
+        Level level = mLevel;
+        float projected = temperature + Math.max(0, slope) * LOOKAHEAD_MIN;
+        while (level.ordinal() < LEVELS.length - 1 && projected >= LEVELS[level.ordinal() + 1].mThreshold) {
+            level = LEVELS[level.ordinal() + 1];
+        }
+        if (level == mLevel && level != Level.NORMAL
+                && temperature < level.mThreshold - HYSTERESIS
+                && slope <= 0
+                && timeMs - mLevelSinceMs >= MIN_DWELL_MS) {
+            level = LEVELS[level.ordinal() - 1];
+        }
+        if (level != mLevel) {
+            account();
+            Log.i(TAG, String.format(Locale.US, "%s -> %s at %.1f C, %+.2f C/min",
+                    mLevel, level, temperature, slope));
+            mLevel = level;
+            mLevelSinceMs = timeMs;
+            mLevels.onNext(level);
+        }
+    }
+
+    private void account() {
+        long now = SystemClock.elapsedRealtime();
+        long cpu = Process.getElapsedCpuTime();
+        mTimeInLevelMs[mLevel.ordinal()] += now - mAccountedMs;
+        mCpuInLevelMs[mLevel.ordinal()] += cpu - mAccountedCpuMs;
+        mAccountedMs = now;
+        mAccountedCpuMs = cpu;
+    }
+
+    public Level getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * The current level, then every change. Safe to subscribe from any thread.
+     */
+    public Observable<Level> observe() {
+        return mLevels;
+    }
+
+    /** Time spent in a level since the start, in milliseconds. */
+    public long getTimeInLevelMs(Level level) {
+        account();
+        return mTimeInLevelMs[level.ordinal()];
+    }
+
+    /** Share of the time spent in a level since the start, in percent. */
+    public float getTimePercent(Level level) {
+        account();
+        long total = 0;
+        for (long time : mTimeInLevelMs) {
+            total += time;
+        }
+        return total == 0 ? 0 : 100f * mTimeInLevelMs[level.ordinal()] / total;
+    }
+
+    /**
+     * CPU usage of the process while in a level, in percent of one core; NaN if the level was
+     * never entered.
+     */
+    public float getCpuPercent(Level level) {
+        account();
+        long time = mTimeInLevelMs[level.ordinal()];
+        return time == 0 ? Float.NaN : 100f * mCpuInLevelMs[level.ordinal()] / time;
+    }
+
+    /** Share of the time spent above {@link Level#NORMAL} since the start, in percent. */
+    public float getThrottledPercent() {
+        account();
+        long total = 0;
+        for (long time : mTimeInLevelMs) {
+            total += time;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        return 100f * (total - mTimeInLevelMs[Level.NORMAL.ordinal()]) / total;
+    }
+
+    /**
+     * Time in each level, with the CPU usage of the process in it: the usage should drop with
+     * the level.
+     */
+    public String report() {
+        account();
+        StringBuilder report = new StringBuilder("thermal governor: ").append(mLevel);
+        for (Level level : LEVELS) {
+            long time = mTimeInLevelMs[level.ordinal()];
+            if (time == 0) {
+                continue;
+            }
+            report.append(String.format(Locale.US, ", %s %d s cpu %.1f%%", level, time / 1000,
+                    getCpuPercent(level)));
+        }
+        return report.toString();
+    }
+}
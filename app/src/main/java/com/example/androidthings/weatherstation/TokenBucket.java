@@ -0,0 +1,72 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+/**
+ * Rate limiter: holds up to {@code capacity} tokens and gains one every {@code refillMs}.
+ * Sending a message costs one token. Not thread safe, use it from a single thread.
+ */
+public class TokenBucket {
+
+    private final int mCapacity;
+    private final long mRefillMs;
+
+    private int mTokens;
+    private long mLastRefillMs;
+
+    public TokenBucket(int capacity, long refillMs, long nowMs) {
+        mCapacity = capacity;
+        mRefillMs = refillMs;
+        mTokens = capacity;
+        mLastRefillMs = nowMs;
+    }
+
+    private void refill(long nowMs) {
+        if (mTokens >= mCapacity) {
+            //a full bucket does not accumulate: the refill clock starts with the next token taken
+            mLastRefillMs = nowMs;
+            return;
+        }
+        long refills = (nowMs - mLastRefillMs) / mRefillMs;
+        if (refills > 0) {
+            mTokens = (int) Math.min(mCapacity, mTokens + refills);
+            mLastRefillMs += refills * mRefillMs;
+        }
+    }
+
+    /**
+     * Takes a token if there is one.
+     *
+     * @return true if the caller may send now
+     */
+    public boolean tryAcquire(long nowMs) {
+        refill(nowMs);
+        if (mTokens == 0) {
+            return false;
+        }
+        mTokens--;
+        return true;
+    }
+
+    /**
+     * @return milliseconds until a token is available, 0 if there is one now
+     */
+    public long delayUntilAvailable(long nowMs) {
+        refill(nowMs);
+        return mTokens > 0 ? 0 : mLastRefillMs + mRefillMs - nowMs;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.things.contrib.driver.pwmspeaker.Speaker;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Plays precomputed tone sequences on the PWM speaker from a dedicated audio thread.
+ * Sequences are queued and played one after the other, so alerts never overlap. Every step is
+ * scheduled at an absolute time from the start of the sequence, so timing does not drift, and
+ * playing a step neither allocates nor touches the main thread.
+ */
+public class TonePlayer implements AutoCloseable {
+    private static final String TAG = TonePlayer.class.getSimpleName();
+
+    //the PWM needs a moment after opening before it plays reliably
+    private static final long SPEAKER_READY_DELAY_MS = 300;
+    private static final int MAX_QUEUED = 4;
+
+    /**
+     * Frequencies in Hz (0 for silence) and how long each one lasts.
+     */
+    public static final class Sequence {
+        private final double[] mFrequencies;
+        private final long[] mDurationsMs;
+
+        public Sequence(double[] frequencies, long[] durationsMs) {
+            if (frequencies.length != durationsMs.length) {
+                throw new IllegalArgumentException("One duration per frequency expected");
+            }
+            mFrequencies = frequencies;
+            mDurationsMs = durationsMs;
+        }
+
+        /**
+         * A linear sweep from {@code from} to {@code to} Hz in {@code steps} steps of
+         * {@code stepMs}, repeated {@code repetitions} times.
+         */
+        public static Sequence sweep(double from, double to, int steps, long stepMs, int repetitions) {
+            double[] frequencies = new double[steps * repetitions];
+            long[] durations = new long[steps * repetitions];
+            for (int r = 0; r < repetitions; r++) {
+                for (int s = 0; s < steps; s++) {
+                    frequencies[r * steps + s] = from + (to - from) * s / (steps - 1);
+                    durations[r * steps + s] = stepMs;
+                }
+            }
+            return new Sequence(frequencies, durations);
+        }
+    }
+
+    /** Startup sound: six fast 440 Hz to 1760 Hz sweeps. */
+    public static final Sequence BOOT_CHIME = Sequence.sweep(440, 440 * 4, 5, 10, 6);
+
+    /** Alert: three two-tone beeps. */
+    public static final Sequence ALERT = new Sequence(
+            new double[]{880, 660, 0, 880, 660, 0, 880, 660, 0},
+            new long[]{150, 150, 100, 150, 150, 100, 150, 150, 100});
+
+    private final Speaker mSpeaker;
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
+
+    //only touched on the audio thread
+    private final ArrayDeque<Sequence> mQueue = new ArrayDeque<>(MAX_QUEUED);
+    private Sequence mCurrent;
+    private int mStep;
+    private long mStepTime;
+
+    public TonePlayer(String pwmPin) throws IOException {
+        mSpeaker = new Speaker(pwmPin);
+        mHandlerThread = new HandlerThread("TonePlayerThread", Process.THREAD_PRIORITY_AUDIO);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        mStepTime = SystemClock.uptimeMillis() + SPEAKER_READY_DELAY_MS;
+    }
+
+    /**
+     * Plays {@code sequence} after the ones already queued. Dropped if the queue is full.
+     */
+    public void play(final Sequence sequence) {
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                if (mCurrent == null) {
+                    start(sequence);
+                } else if (mQueue.size() < MAX_QUEUED) {
+                    mQueue.add(sequence);
+                } else {
+                    Log.w(TAG, "Tone queue full, dropping sequence");
+                }
+            }
+        });
+    }
+
+    private void start(Sequence sequence) {
+        mCurrent = sequence;
+        mStep = 0;
+        //never before the speaker is ready or the previous sequence is over
+        mStepTime = Math.max(mStepTime, SystemClock.uptimeMillis());
+        mHandler.postAtTime(mStepRunnable, mStepTime);
+    }
+
+    private final Runnable mStepRunnable = new Runnable() {
+
+        @Override
+        public void run() {
+            try {
+                if (mStep < mCurrent.mFrequencies.length) {
+                    double frequency = mCurrent.mFrequencies[mStep];
+                    if (frequency > 0) {
+                        mSpeaker.play(frequency);
+                    } else {
+                        mSpeaker.stop();
+                    }
+                    mStepTime += mCurrent.mDurationsMs[mStep];
+                    mStep++;
+                    mHandler.postAtTime(mStepRunnable, mStepTime);
+                    return;
+                }
+                mSpeaker.stop();
+            } catch (IOException e) {
+                Log.e(TAG, "Error playing tone", e);
+            }
+            mCurrent = null;
+            Sequence next = mQueue.poll();
+            if (next != null) {
+                start(next);
+            }
+        }
+    };
+
+    @Override
+    public void close() {
+        mHandler.removeCallbacksAndMessages(null);
+        mHandler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    mSpeaker.stop();
+                    mSpeaker.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error closing speaker", e);
+                }
+            }
+        });
+        mHandlerThread.quitSafely();
+    }
+}
@@ -0,0 +1,994 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.graphics.Color;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.KeyEvent;
+
+import com.google.android.things.contrib.driver.apa102.Apa102;
+import com.google.android.things.contrib.driver.button.Button;
+import com.google.android.things.contrib.driver.button.ButtonInputDriver;
+import com.google.android.things.contrib.driver.ht16k33.AlphanumericDisplay;
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.PeripheralManagerService;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import rx.Observable;
+import rx.android.schedulers.AndroidSchedulers;
+import rx.functions.Action1;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
+import rx.subscriptions.CompositeSubscription;
+
+/**
+ * Runs the station: peripherals, sampling, processing and publishing. It is a foreground service
+ * in a process of its own, so the pipeline and the MQTT connection survive the activity being
+ * recreated and do not compete with the UI thread.
+ * <p>
+ * Clients bind through a {@link Messenger}: they register with {@link #MSG_REGISTER_CLIENT} to
+ * receive {@link #MSG_WEATHER}, and forward the button key events with {@link #MSG_KEY_DOWN} and
+ * {@link #MSG_KEY_UP}.
+ */
+public class WeatherStationService extends Service {
+
+    private static final String TAG = WeatherStationService.class.getSimpleName();
+
+    /** Client to service, {@code replyTo} is the client messenger. */
+    public static final int MSG_REGISTER_CLIENT = 1;
+    /** Client to service, {@code replyTo} is the client messenger. */
+    public static final int MSG_UNREGISTER_CLIENT = 2;
+    /** Client to service, {@code arg1} is the key code. */
+    public static final int MSG_KEY_DOWN = 3;
+    /** Client to service, {@code arg1} is the key code. */
+    public static final int MSG_KEY_UP = 4;
+    /** Service to client, {@code arg1} is the drawable of the forecast weather. */
+    public static final int MSG_WEATHER = 5;
+
+    private enum DisplayMode {
+        TEMPERATURE,
+        PRESSURE
+    }
+
+    // peripherals are assigned from the bring-up threads and stay null when missing
+    private volatile ButtonInputDriver mButtonInputDriverA;
+    private volatile ButtonInputDriver mButtonInputDriverB;
+    private volatile ButtonInputDriver mButtonInputDriverC;
+    private volatile SamplingScheduler mSamplingScheduler;
+    private volatile AlphanumericDisplay mDisplay;
+    private DisplayMode mDisplayMode = DisplayMode.TEMPERATURE;
+
+    //sample at the fastest rate for a while after a button press
+    private static final long BUTTON_BOOST_MS = 5000;
+    private final DecimalFormat mTemperatureFormat = new DecimalFormat("##", DecimalFormatSymbols.getInstance(Locale.US));
+    //4 digits plus the decimal point, which the display shows on the previous digit
+    private final DecimalFormat mPressureFormat = new DecimalFormat("###0.#", DecimalFormatSymbols.getInstance(Locale.US));
+    private String mDisplayedText;
+
+    private volatile Apa102 mLedstrip;
+    private static final int LEDSTRIP_LENGTH = 7;
+    private final int[] mLedstripColors = new int[LEDSTRIP_LENGTH];
+    private volatile Gpio mLedRed;
+    private volatile Gpio mLedGreen;
+    private volatile Gpio mLedBlue;
+
+    private PeripheralBringUp mPeripheralBringUp;
+    private static final long SENSOR_TIMEOUT_MS = 3000;
+    private static final long PERIPHERAL_TIMEOUT_MS = 2000;
+
+    private static final int LEDSTRIP_BRIGHTNESS = 1;
+
+    private final BarometricForecaster mForecaster =
+            new BarometricForecaster(BuildConfig.STATION_ALTITUDE_M);
+    private AlertRules mAlertRules;
+    private final LatencyTracer mLatencyTracer = new LatencyTracer();
+    //scratch copy of the rollups, only used on the main thread
+    private final StateSnapshot.Rollup mRollup = new StateSnapshot.Rollup();
+
+    private volatile TonePlayer mTonePlayer;
+
+    private MqttPublisher mMqttPublisher;
+    // null if remote configuration is disabled
+    private ConfigSubscriber mConfigSubscriber;
+
+    private static final int MSG_UPDATE_WEATHER = 100;
+    private static final int NOTIFICATION_ID = 1;
+
+    // corrects the temperature for the heat of the board, for every consumer
+    private final ThermalCompensator mThermalCompensator = new ThermalCompensator();
+
+    // slows the whole pipeline down while the board runs hot, only used on the main thread
+    private final ThermalGovernor mThermalGovernor = new ThermalGovernor();
+
+    // tunables, replaced as a whole when a new version arrives on the config topic
+    private final ConfigStore mConfigStore = new ConfigStore();
+
+    // every consumer of the sensor streams subscribes with its own operators and rate,
+    // all the subscriptions are released together in onDestroy
+    private final SensorStreams mSensorStreams =
+            new SensorStreams(AndroidSchedulers.mainThread(), mConfigStore.observe());
+    private final CompositeSubscription mSubscriptions = new CompositeSubscription();
+
+    // bound clients, only used on the main thread
+    private final List<Messenger> mClients = new ArrayList<>();
+    private int mWeatherIcon = -1;
+
+    private final Handler mMainHandler = new Handler() {
+
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_REGISTER_CLIENT:
+                    mClients.add(msg.replyTo);
+                    if (mWeatherIcon != -1) {
+                        sendWeather(msg.replyTo);
+                    }
+                    break;
+                case MSG_UNREGISTER_CLIENT:
+                    mClients.remove(msg.replyTo);
+                    break;
+                case MSG_KEY_DOWN:
+                    onKeyDown(msg.arg1);
+                    break;
+                case MSG_KEY_UP:
+                    onKeyUp(msg.arg1);
+                    break;
+                case MSG_UPDATE_WEATHER:
+                    BarometricForecaster.Weather weather = mForecaster.getWeather();
+                    if (weather == null) {
+                        break;
+                    }
+                    int img = weather.getIcon();
+                    if (img != mWeatherIcon) {
+                        mWeatherIcon = img;
+                        for (int i = mClients.size() - 1; i >= 0; i--) {
+                            sendWeather(mClients.get(i));
+                        }
+                        updateNotification(weather.name().toLowerCase(Locale.US));
+                    }
+                    break;
+            }
+        }
+    };
+
+    private final Messenger mMessenger = new Messenger(mMainHandler);
+
+    private void sendWeather(Messenger client) {
+        try {
+            client.send(Message.obtain(null, MSG_WEATHER, mWeatherIcon, 0));
+        } catch (RemoteException e) {
+            //the client is gone
+            mClients.remove(client);
+        }
+    }
+
+    private float mLastTemperature = Float.NaN;
+    private float mLastPressure = Float.NaN;
+
+    private static final String STATE_SNAPSHOT_FILE = "state.bin";
+    private static final String CONFIG_FILE = "config.json";
+    private StateSnapshot mStateSnapshot;
+
+    private Notification buildNotification(String text) {
+        Intent intent = new Intent(this, WeatherStationActivity.class);
+        return new Notification.Builder(this)
+                .setSmallIcon(android.R.drawable.sym_def_app_icon)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(text)
+                .setContentIntent(PendingIntent.getActivity(this, 0, intent, 0))
+                .setOngoing(true)
+                .build();
+    }
+
+    private void updateNotification(String text) {
+        NotificationManager notificationManager =
+                (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        notificationManager.notify(NOTIFICATION_ID, buildNotification(text));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        Log.d(TAG, "Started Weather Station");
+
+        // keep the pipeline alive whether or not an activity is bound
+        startForeground(NOTIFICATION_ID, buildNotification("starting"));
+
+        // the last config applied, in case the config broker is out of reach
+        mConfigStore.restore(new File(getFilesDir(), CONFIG_FILE));
+        if (ConfigSubscriber.isEnabled()) {
+            mConfigSubscriber = new ConfigSubscriber(this, mConfigStore);
+        }
+
+        // warm start from the last checkpoint, so nothing shows garbage until the first sample
+        mStateSnapshot = new StateSnapshot(new File(getFilesDir(), STATE_SNAPSHOT_FILE), mForecaster,
+                mThermalCompensator);
+        mLastTemperature = mStateSnapshot.getTemperature();
+        mLastPressure = mStateSnapshot.getPressure();
+        if (!Float.isNaN(mLastPressure)) {
+            mMainHandler.sendEmptyMessage(MSG_UPDATE_WEATHER);
+        }
+        mStateSnapshot.start();
+
+        mAlertRules = new AlertRules(getResources().getStringArray(R.array.alert_rules), mAlertActions);
+        Log.d(TAG, "Compiled " + mAlertRules.size() + " alert rules");
+
+        // start MQTT Publisher first: connecting to the broker runs in parallel with the bring-up
+        try {
+            mMqttPublisher = new MqttPublisher(this, "weatherstation", mLatencyTracer);
+            mMqttPublisher.restore(mLastTemperature, mLastPressure, mStateSnapshot.getSavedAtMs());
+            publishDerivedMetrics();
+        } catch (IOException e) {
+            Log.e(TAG, "Error creating MQTT publisher", e);
+        }
+
+        // Resolve the board pins once on the main thread (this may probe the GPIO list), then
+        // open every peripheral in parallel. A missing peripheral leaves its field null and the
+        // station keeps running in degraded mode.
+        final String i2cBus = BoardDefaults.getI2cBus();
+        final String spiBus = BoardDefaults.getSpiBus();
+        final String speakerPin = BoardDefaults.getSpeakerPwmPin();
+        final PeripheralManagerService pioService = BoardDefaults.getPeripheralManagerService();
+
+        mPeripheralBringUp = new PeripheralBringUp();
+
+        // I2C
+        // Note: In this sample we only use one I2C bus, but multiple peripherals can be connected
+        // to it and we can access them all, as long as they each have a different address on the
+        // bus. Many peripherals can be configured to use a different address, often by connecting
+        // the pins a certain way; this may be necessary if the default address conflicts with
+        // another peripheral's. In our case, the temperature sensor and the display have
+        // different default addresses, so everything just works.
+        mPeripheralBringUp.add(new PeripheralBringUp.Device<SamplingScheduler>("BMP280", i2cBus, SENSOR_TIMEOUT_MS) {
+
+            @Override
+            protected SamplingScheduler open() throws IOException {
+                //the BMP280 sleeps between reads, the scheduler wakes it up when consumers need data
+                return new SamplingScheduler(i2cBus);
+            }
+
+            @Override
+            protected void onOpened(final SamplingScheduler samplingScheduler) {
+                //start sampling right away, without waiting for the slower peripherals
+                mSamplingScheduler = samplingScheduler;
+                mSamplingScheduler.setFilters(FilterChain.parse(BuildConfig.TEMPERATURE_FILTER),
+                        FilterChain.parse(BuildConfig.PRESSURE_FILTER));
+                mSamplingScheduler.setCompensator(mThermalCompensator);
+                //the governor is only read on the main thread
+                mMainHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        samplingScheduler.setThrottle(mThermalGovernor.getLevel().getScale());
+                    }
+                });
+                //the display and the publisher need a sample at least once per interval, whatever
+                //the config says now
+                mSubscriptions.add(intervals(SAMPLE_INTERVAL)
+                        .observeOn(AndroidSchedulers.mainThread())
+                        .subscribe(new Action1<Long>() {
+
+                            @Override
+                            public void call(Long intervalMs) {
+                                samplingScheduler.removeListener(mSampleListener);
+                                samplingScheduler.addListener(mSampleListener, intervalMs, mMainHandler);
+                            }
+                        }, mLogError));
+                mSamplingScheduler.start();
+            }
+        });
+
+        mPeripheralBringUp.add(new PeripheralBringUp.Device<AlphanumericDisplay>("Display", i2cBus, PERIPHERAL_TIMEOUT_MS) {
+
+            @Override
+            protected AlphanumericDisplay open() throws IOException {
+                AlphanumericDisplay display = new AlphanumericDisplay(i2cBus);
+                display.setEnabled(true);
+                display.display("Hi!!");
+                display.clear();
+                return display;
+            }
+
+            @Override
+            protected void onOpened(AlphanumericDisplay display) {
+                mDisplay = display;
+                //the display is only written on the main thread
+                mMainHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (mDisplayMode == DisplayMode.TEMPERATURE) {
+                            updateDisplayTemperature(mLastTemperature);
+                        } else {
+                            updateDisplayPressure(mLastPressure);
+                        }
+                    }
+                });
+            }
+        });
+
+        // SPI ledstrip
+        mPeripheralBringUp.add(new PeripheralBringUp.Device<Apa102>("Ledstrip", spiBus, PERIPHERAL_TIMEOUT_MS) {
+
+            @Override
+            protected Apa102 open() throws IOException {
+                Apa102 ledstrip = new Apa102(spiBus, Apa102.Mode.BGR);
+                ledstrip.setBrightness(LEDSTRIP_BRIGHTNESS);
+                return ledstrip;
+            }
+
+            @Override
+            protected void onOpened(Apa102 ledstrip) {
+                mLedstrip = ledstrip;
+                //the led strip is only written on the main thread
+                mMainHandler.post(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        if (!Float.isNaN(mLastPressure)) {
+                            writeLedStrip(ledStripState(mLastPressure));
+                        }
+                    }
+                });
+            }
+        });
+
+        // GPIO buttons that generate 'A', 'B' and 'C' keypresses; the system delivers them to the
+        // focused activity, which forwards them here (see onKeyDown/onKeyUp)
+        mPeripheralBringUp.add(new ButtonDevice("Button A", BoardDefaults.RPI_BUTTON_A, KeyEvent.KEYCODE_A) {
+
+            @Override
+            protected void onOpened(ButtonInputDriver button) {
+                mButtonInputDriverA = button;
+            }
+        });
+        mPeripheralBringUp.add(new ButtonDevice("Button B", BoardDefaults.RPI_BUTTON_B, KeyEvent.KEYCODE_B) {
+
+            @Override
+            protected void onOpened(ButtonInputDriver button) {
+                mButtonInputDriverB = button;
+            }
+        });
+        mPeripheralBringUp.add(new ButtonDevice("Button C", BoardDefaults.RPI_BUTTON_C, KeyEvent.KEYCODE_C) {
+
+            @Override
+            protected void onOpened(ButtonInputDriver button) {
+                mButtonInputDriverC = button;
+            }
+        });
+
+        // GPIO leds
+        mPeripheralBringUp.add(new LedDevice("Led red", pioService, BoardDefaults.RPI_LED_RED) {
+
+            @Override
+            protected void onOpened(Gpio led) {
+                mLedRed = led;
+            }
+        });
+        mPeripheralBringUp.add(new LedDevice("Led green", pioService, BoardDefaults.RPI_LED_GREEN) {
+
+            @Override
+            protected void onOpened(Gpio led) {
+                mLedGreen = led;
+            }
+        });
+        mPeripheralBringUp.add(new LedDevice("Led blue", pioService, BoardDefaults.RPI_LED_BLUE) {
+
+            @Override
+            protected void onOpened(Gpio led) {
+                mLedBlue = led;
+            }
+        });
+
+        // PWM speaker
+        mPeripheralBringUp.add(new PeripheralBringUp.Device<TonePlayer>("Speaker", speakerPin, PERIPHERAL_TIMEOUT_MS) {
+
+            @Override
+            protected TonePlayer open() throws IOException {
+                return new TonePlayer(speakerPin);
+            }
+
+            @Override
+            protected void onOpened(TonePlayer tonePlayer) {
+                mTonePlayer = tonePlayer;
+                //board startup sound, played on the tone player thread
+                mTonePlayer.play(TonePlayer.BOOT_CHIME);
+            }
+        });
+
+        mPeripheralBringUp.start(new PeripheralBringUp.Callback() {
+
+            @Override
+            public void onBringUpComplete(Map<String, PeripheralBringUp.Status> result, String report) {
+                mPeripheralBringUp = null;
+                if (result.get("BMP280") != PeripheralBringUp.Status.OK) {
+                    Log.w(TAG, "No BMP280, running without temperature and pressure");
+                }
+            }
+        }, mMainHandler);
+
+        subscribeToSensorStreams();
+    }
+
+    private static final Func1<StationConfig, Long> DISPLAY_INTERVAL = new Func1<StationConfig, Long>() {
+
+        @Override
+        public Long call(StationConfig config) {
+            return config.getDisplayIntervalMs();
+        }
+    };
+
+    private static final Func1<StationConfig, Long> PUBLISH_INTERVAL = new Func1<StationConfig, Long>() {
+
+        @Override
+        public Long call(StationConfig config) {
+            return config.getPublishIntervalMs();
+        }
+    };
+
+    private static final Func1<StationConfig, Long> SAMPLE_INTERVAL = new Func1<StationConfig, Long>() {
+
+        @Override
+        public Long call(StationConfig config) {
+            return Math.min(config.getDisplayIntervalMs(), config.getPublishIntervalMs());
+        }
+    };
+
+    // one of the intervals of the config, each time it changes
+    private Observable<Long> intervals(Func1<StationConfig, Long> interval) {
+        return mConfigStore.observe().map(interval).distinctUntilChanged();
+    }
+
+    // ticks at one of the intervals of the config, restarted when it changes
+    private Observable<Long> ticks(Func1<StationConfig, Long> interval) {
+        return intervals(interval).switchMap(new Func1<Long, Observable<Long>>() {
+
+            @Override
+            public Observable<Long> call(Long intervalMs) {
+                return Observable.interval(intervalMs, intervalMs, TimeUnit.MILLISECONDS,
+                        Schedulers.computation());
+            }
+        });
+    }
+
+    private void subscribeToSensorStreams() {
+        // display: one refresh per display interval at most, whatever the sensor rate
+        mSubscriptions.add(mSensorStreams.readings()
+                .sample(ticks(DISPLAY_INTERVAL))
+                .onBackpressureLatest()
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(new Action1<SensorStreams.Reading>() {
+
+                    @Override
+                    public void call(SensorStreams.Reading reading) {
+                        boolean displayed;
+                        if (mDisplayMode == DisplayMode.TEMPERATURE) {
+                            displayed = updateDisplayTemperature(reading.getTemperature());
+                        } else {
+                            displayed = updateDisplayPressure(reading.getPressure());
+                        }
+                        if (displayed) {
+                            mLatencyTracer.record(LatencyTracer.Stage.DISPLAYED, reading.getTimestampNs());
+                        }
+                    }
+                }, mLogError));
+
+        // led strip: only written when the bar or its color changes, at most once per display
+        // interval
+        mSubscriptions.add(mSensorStreams.pressure()
+                .map(new Func1<Float, Long>() {
+
+                    @Override
+                    public Long call(Float pressure) {
+                        return ledStripState(pressure);
+                    }
+                })
+                .distinctUntilChanged()
+                .sample(ticks(DISPLAY_INTERVAL))
+                .distinctUntilChanged()
+                .onBackpressureLatest()
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(new Action1<Long>() {
+
+                    @Override
+                    public void call(Long state) {
+                        writeLedStrip(state);
+                    }
+                }, mLogError));
+
+        // publisher: one update per publish interval, the readings averaged over it. An empty
+        // interval (no BMP280) still publishes the derived metrics and the last readings
+        mSubscriptions.add(mSensorStreams.readings()
+                .buffer(ticks(PUBLISH_INTERVAL))
+                .onBackpressureLatest()
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(new Action1<List<SensorStreams.Reading>>() {
+
+                    @Override
+                    public void call(List<SensorStreams.Reading> readings) {
+                        if (mMqttPublisher == null) {
+                            return;
+                        }
+                        //readings repeat the last sample at every CPU poll: average each sample
+                        //once, the CPU temperature at every poll
+                        float temperature = 0;
+                        float pressure = 0;
+                        int samples = 0;
+                        long timestampNs = 0;
+                        float cpuTemperature = 0;
+                        int cpuReadings = 0;
+                        for (SensorStreams.Reading reading : readings) {
+                            if (reading.getTimestampNs() != timestampNs) {
+                                timestampNs = reading.getTimestampNs();
+                                temperature += reading.getTemperature();
+                                pressure += reading.getPressure();
+                                samples++;
+                            }
+                            if (!Float.isNaN(reading.getCpuTemperature())) {
+                                cpuTemperature += reading.getCpuTemperature();
+                                cpuReadings++;
+                            }
+                        }
+                        if (cpuReadings > 0) {
+                            mMqttPublisher.setMetric(ChannelMap.Metric.CPU_TEMPERATURE,
+                                    cpuTemperature / cpuReadings);
+                        }
+                        publishDerivedMetrics();
+                        mMqttPublisher.publish(samples > 0 ? temperature / samples : Float.NaN,
+                                samples > 0 ? pressure / samples : Float.NaN, timestampNs);
+                    }
+                }, mLogError));
+
+        // CPU temperature: thermal model, state and alerts
+        mSubscriptions.add(mSensorStreams.cpuTemperature()
+                .subscribe(new Action1<Float>() {
+
+                    @Override
+                    public void call(Float cpuTemperature) {
+                        mThermalCompensator.onCpuTemperature(cpuTemperature, SystemClock.elapsedRealtime());
+                        mThermalGovernor.onCpuTemperature(cpuTemperature, SystemClock.elapsedRealtime());
+                        mStateSnapshot.onCpuTemperature(cpuTemperature);
+                        mAlertRules.onValue(AlertRules.METRIC_CPU_TEMPERATURE, cpuTemperature);
+                    }
+                }, mLogError));
+
+        // thermal governor: display, led strip and publisher follow the scaled config, the
+        // sampler gets a longer shortest interval
+        mSubscriptions.add(mThermalGovernor.observe()
+                .subscribe(new Action1<ThermalGovernor.Level>() {
+
+                    @Override
+                    public void call(ThermalGovernor.Level level) {
+                        mConfigStore.setScale(level.getScale());
+                        SamplingScheduler samplingScheduler = mSamplingScheduler;
+                        if (samplingScheduler != null) {
+                            samplingScheduler.setThrottle(level.getScale());
+                        }
+                        Log.i(TAG, mThermalGovernor.report());
+                    }
+                }, mLogError));
+
+        // reference probe, if any: the thermal model learns from it
+        if (!BuildConfig.REFERENCE_PROBE_PATH.isEmpty()) {
+            mSubscriptions.add(mSensorStreams.referenceTemperature(BuildConfig.REFERENCE_PROBE_PATH)
+                    .subscribe(new Action1<Float>() {
+
+                        @Override
+                        public void call(Float ambient) {
+                            mThermalCompensator.onReference(ambient);
+                        }
+                    }, mLogError));
+        }
+    }
+
+    private final Action1<Throwable> mLogError = new Action1<Throwable>() {
+
+        @Override
+        public void call(Throwable throwable) {
+            Log.e(TAG, "Error in sensor stream", throwable);
+        }
+    };
+
+    private static abstract class ButtonDevice extends PeripheralBringUp.Device<ButtonInputDriver> {
+        private final String mPin;
+        private final int mKeyCode;
+
+        ButtonDevice(String name, String pin, int keyCode) {
+            super(name, pin, PERIPHERAL_TIMEOUT_MS);
+            mPin = pin;
+            mKeyCode = keyCode;
+        }
+
+        @Override
+        protected ButtonInputDriver open() throws IOException {
+            ButtonInputDriver button = new ButtonInputDriver(
+                    mPin,
+                    Button.LogicState.PRESSED_WHEN_LOW,
+                    mKeyCode);
+            button.register();
+            return button;
+        }
+    }
+
+    private static abstract class LedDevice extends PeripheralBringUp.Device<Gpio> {
+        private final PeripheralManagerService mPioService;
+        private final String mPin;
+
+        LedDevice(String name, PeripheralManagerService pioService, String pin) {
+            super(name, pin, PERIPHERAL_TIMEOUT_MS);
+            mPioService = pioService;
+            mPin = pin;
+        }
+
+        @Override
+        protected Gpio open() throws IOException {
+            Gpio led = mPioService.openGpio(mPin);
+            led.setEdgeTriggerType(Gpio.EDGE_NONE);
+            led.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
+            led.setActiveType(Gpio.ACTIVE_HIGH);
+            return led;
+        }
+    }
+
+    // Callback when the SamplingScheduler delivers a new forced-mode measurement.
+    private SamplingScheduler.Listener mSampleListener = new SamplingScheduler.Listener() {
+
+        @Override
+        public void onSample(float temperature, float pressure, long timestampNs) {
+            mLatencyTracer.record(LatencyTracer.Stage.DELIVERED, timestampNs);
+            mLastTemperature = temperature;
+            mLastPressure = pressure;
+            mStateSnapshot.onSample(temperature, pressure);
+            mForecaster.onSample(pressure, temperature, System.currentTimeMillis());
+            mAlertRules.onValue(AlertRules.METRIC_TEMPERATURE, temperature);
+            mAlertRules.onValue(AlertRules.METRIC_PRESSURE, pressure);
+            mAlertRules.onValue(AlertRules.METRIC_PRESSURE_TENDENCY, mForecaster.getTendency());
+            Log.d(TAG, "sample: " + mLastTemperature + " " + mLastPressure);
+            if (!mMainHandler.hasMessages(MSG_UPDATE_WEATHER)) {
+                mMainHandler.sendEmptyMessageDelayed(MSG_UPDATE_WEATHER, 100);
+            }
+            // display, led strip and publisher follow the streams at their own pace
+            mSensorStreams.onSample(temperature, pressure, timestampNs);
+        }
+    };
+
+    private final AlertRules.Actions mAlertActions = new AlertRules.Actions() {
+
+        @Override
+        public void setLed(int led, boolean on) {
+            switch (led) {
+                case AlertRules.LED_RED:
+                    WeatherStationService.this.setLed(mLedRed, on);
+                    break;
+                case AlertRules.LED_GREEN:
+                    WeatherStationService.this.setLed(mLedGreen, on);
+                    break;
+                case AlertRules.LED_BLUE:
+                    WeatherStationService.this.setLed(mLedBlue, on);
+                    break;
+            }
+        }
+
+        @Override
+        public void playAlert() {
+            if (mTonePlayer != null) {
+                mTonePlayer.play(TonePlayer.ALERT);
+            }
+        }
+
+        @Override
+        public void publishAlert(String rule, float value) {
+            if (mMqttPublisher != null) {
+                mMqttPublisher.publishAlert("ALERT: " + rule + " " + value);
+            }
+        }
+    };
+
+    // per level of the thermal governor, in the order of ThermalGovernor.Level
+    private static final ChannelMap.Metric[] THERMAL_TIME_METRICS = {
+            ChannelMap.Metric.THERMAL_TIME_NORMAL, ChannelMap.Metric.THERMAL_TIME_WARM,
+            ChannelMap.Metric.THERMAL_TIME_HOT, ChannelMap.Metric.THERMAL_TIME_CRITICAL};
+    private static final ChannelMap.Metric[] THERMAL_CPU_METRICS = {
+            ChannelMap.Metric.THERMAL_CPU_NORMAL, ChannelMap.Metric.THERMAL_CPU_WARM,
+            ChannelMap.Metric.THERMAL_CPU_HOT, ChannelMap.Metric.THERMAL_CPU_CRITICAL};
+
+    // Metrics computed from the samples: forecast, tendency and the daily rollups.
+    private void publishDerivedMetrics() {
+        if (mMqttPublisher == null) {
+            return;
+        }
+        int zambretti = mForecaster.getZambretti();
+        mMqttPublisher.setMetric(ChannelMap.Metric.FORECAST, zambretti > 0 ? zambretti : Float.NaN);
+        mMqttPublisher.setMetric(ChannelMap.Metric.PRESSURE_TENDENCY, mForecaster.getTendency());
+        mMqttPublisher.setMetric(ChannelMap.Metric.THERMAL_FIT_RMS, mThermalCompensator.getFitRms());
+        mMqttPublisher.setMetric(ChannelMap.Metric.THERMAL_COST_NS, mThermalCompensator.getAverageCostNs());
+        mMqttPublisher.setMetric(ChannelMap.Metric.THERMAL_LEVEL, mThermalGovernor.getLevel().ordinal());
+        mMqttPublisher.setMetric(ChannelMap.Metric.THROTTLED_PERCENT, mThermalGovernor.getThrottledPercent());
+        for (ThermalGovernor.Level level : ThermalGovernor.Level.values()) {
+            mMqttPublisher.setMetric(THERMAL_TIME_METRICS[level.ordinal()], mThermalGovernor.getTimePercent(level));
+            mMqttPublisher.setMetric(THERMAL_CPU_METRICS[level.ordinal()], mThermalGovernor.getCpuPercent(level));
+        }
+        mStateSnapshot.getTemperatureRollup(mRollup);
+        mMqttPublisher.setMetric(ChannelMap.Metric.TEMPERATURE_MIN, mRollup.getMin());
+        mMqttPublisher.setMetric(ChannelMap.Metric.TEMPERATURE_MAX, mRollup.getMax());
+        mMqttPublisher.setMetric(ChannelMap.Metric.TEMPERATURE_MEAN, mRollup.getMean());
+        mStateSnapshot.getPressureRollup(mRollup);
+        mMqttPublisher.setMetric(ChannelMap.Metric.PRESSURE_MIN, mRollup.getMin());
+        mMqttPublisher.setMetric(ChannelMap.Metric.PRESSURE_MAX, mRollup.getMax());
+        mMqttPublisher.setMetric(ChannelMap.Metric.PRESSURE_MEAN, mRollup.getMean());
+    }
+
+    private void onKeyDown(int keyCode) {
+        if (mSamplingScheduler != null) {
+            mSamplingScheduler.boost(BUTTON_BOOST_MS);
+        }
+        if(keyCode == KeyEvent.KEYCODE_A) {
+            if(mDisplayMode != DisplayMode.TEMPERATURE) {
+                mDisplayMode = DisplayMode.TEMPERATURE;
+                updateDisplayTemperature(mLastTemperature);
+                setLed(mLedRed, true);
+            }
+        } else if(keyCode == KeyEvent.KEYCODE_B) {
+            if(mDisplayMode != DisplayMode.PRESSURE) {
+                mDisplayMode = DisplayMode.PRESSURE;
+                updateDisplayPressure(mLastPressure);
+                setLed(mLedGreen, true);
+            }
+        }
+    }
+
+    private void onKeyUp(int keyCode) {
+        if (keyCode == KeyEvent.KEYCODE_A) {
+            setLed(mLedRed, false);
+        } else if(keyCode == KeyEvent.KEYCODE_B) {
+            setLed(mLedGreen, false);
+        }
+    }
+
+    private void setLed(Gpio led, boolean value) {
+        if (led == null) {
+            return;
+        }
+        try {
+            led.setValue(value);
+        } catch (IOException e) {
+            Log.e(TAG, "error updating LED", e);
+        }
+    }
+
+    //true if the display was written
+    private boolean updateDisplayTemperature(float temperature) {
+        if (mDisplay != null && !Float.isNaN(temperature)) {
+            return updateDisplay(mTemperatureFormat.format(temperature));
+        }
+        return false;
+    }
+
+    private boolean updateDisplayPressure(float pressure) {
+        if (mDisplay != null && !Float.isNaN(pressure)) {
+            return updateDisplay(mPressureFormat.format(pressure));
+        }
+        return false;
+    }
+
+    //only write to the display when the text actually changes
+    private boolean updateDisplay(String text) {
+        if (text.equals(mDisplayedText)) {
+            return false;
+        }
+        try {
+            mDisplay.display(text);
+            mDisplayedText = text;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error setting display", e);
+            return false;
+        }
+    }
+
+    // the bar shows the pressure, its color the forecast weather; both packed in one value
+    // so that unchanged states are easy to skip
+    private long ledStripState(float pressure) {
+        BarometricForecaster.Weather weather = mForecaster.getWeather();
+        int color = weather != null ? weather.getLedColor() : Color.WHITE;
+        StationConfig config = mConfigStore.get();
+        float t = (pressure - config.getBarometerRangeLow())
+                / (config.getBarometerRangeHigh() - config.getBarometerRangeLow());
+        int n = (int) Math.ceil(LEDSTRIP_LENGTH * t);
+        n = Math.max(0, Math.min(n, LEDSTRIP_LENGTH));
+        return ((long) color << 32) | n;
+    }
+
+    private void writeLedStrip(long state) {
+        if (mLedstrip == null) {
+            return;
+        }
+        int color = (int) (state >>> 32);
+        int n = (int) state;
+        for (int i = 0; i < LEDSTRIP_LENGTH; i++) {
+            mLedstripColors[LEDSTRIP_LENGTH - 1 - i] = i < n ? color : 0;
+        }
+        try {
+            mLedstrip.write(mLedstripColors);
+        } catch (IOException e) {
+            Log.e(TAG, "Error setting ledstrip", e);
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // restarted with the same setup if the process is killed
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mMessenger.getBinder();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        //nothing queued runs against closed peripherals
+        mMainHandler.removeCallbacksAndMessages(null);
+        mClients.clear();
+        stopForeground(true);
+
+        // No consumer runs once the peripherals are closed
+        mSubscriptions.unsubscribe();
+        mSensorStreams.close();
+
+        // Stop the bring-up first: devices still being opened are closed by the bring-up itself.
+        if (mPeripheralBringUp != null) {
+            mPeripheralBringUp.cancel();
+            mPeripheralBringUp = null;
+        }
+
+        // Clean up peripheral.
+        if (mSamplingScheduler != null) {
+            mSamplingScheduler.removeListener(mSampleListener);
+            mSamplingScheduler.close();
+            mSamplingScheduler = null;
+        }
+
+        if (mButtonInputDriverA != null) {
+            try {
+                mButtonInputDriverA.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mButtonInputDriverA = null;
+        }
+
+        if (mButtonInputDriverB != null) {
+            try {
+                mButtonInputDriverB.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mButtonInputDriverB = null;
+        }
+
+        if (mButtonInputDriverC != null) {
+            try {
+                mButtonInputDriverC.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mButtonInputDriverC = null;
+        }
+
+        if (mDisplay != null) {
+            try {
+                mDisplay.clear();
+                mDisplay.setEnabled(false);
+                mDisplay.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error disabling display", e);
+            } finally {
+                mDisplay = null;
+            }
+        }
+
+        if (mLedstrip != null) {
+            try {
+                mLedstrip.setBrightness(0);
+                mLedstrip.write(new int[LEDSTRIP_LENGTH]);
+                mLedstrip.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error disabling ledstrip", e);
+            } finally {
+                mLedstrip = null;
+            }
+        }
+
+        if (mLedRed != null) {
+            try {
+                mLedRed.setValue(false);
+                mLedRed.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error disabling led", e);
+            } finally {
+                mLedRed = null;
+            }
+        }
+
+        if (mLedGreen != null) {
+            try {
+                mLedGreen.setValue(false);
+                mLedGreen.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error disabling led", e);
+            } finally {
+                mLedGreen = null;
+            }
+        }
+
+        if (mLedBlue != null) {
+            try {
+                mLedBlue.setValue(false);
+                mLedBlue.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error disabling led", e);
+            } finally {
+                mLedBlue = null;
+            }
+        }
+
+        if (mTonePlayer != null) {
+            mTonePlayer.close();
+            mTonePlayer = null;
+        }
+
+        // last checkpoint, then stop the checkpoint thread
+        if (mStateSnapshot != null) {
+            mStateSnapshot.close();
+            mStateSnapshot = null;
+        }
+
+        // clean up MQTT PubSub publisher.
+        if (mMqttPublisher != null) {
+            mMqttPublisher.close();
+            mMqttPublisher = null;
+        }
+        if (mConfigSubscriber != null) {
+            mConfigSubscriber.close();
+            mConfigSubscriber = null;
+        }
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drains outboxes against a local stand-in for the ThingSpeak bulk-update API.
+ */
+public class BulkUploaderTest {
+
+    private static final Pattern FIELD1 = Pattern.compile("\"field1\":\"([^\"]*)\"");
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+    private HttpServer mServer;
+    private String mUrl;
+
+    //what the stand-in accepted, in order, and the size of every request
+    private final List<String> mAccepted = new ArrayList<>();
+    private final List<Integer> mRequests = new ArrayList<>();
+    //status codes to answer with, 202 once exhausted
+    private final List<Integer> mCodes = new ArrayList<>();
+    //requests containing this are answered 400
+    private String mPoison;
+
+    private final BulkUploader.RateLimit mNoLimit = new BulkUploader.RateLimit() {
+
+        @Override
+        public long tryAcquire() {
+            return 0;
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = mFolder.newFolder();
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/channels/1/bulk_update.json", new HttpHandler() {
+
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String body = readBody(exchange);
+                List<String> values = new ArrayList<>();
+                Matcher matcher = FIELD1.matcher(body);
+                while (matcher.find()) {
+                    values.add(matcher.group(1));
+                }
+                int code;
+                synchronized (BulkUploaderTest.this) {
+                    mRequests.add(values.size());
+                    if (!mCodes.isEmpty()) {
+                        code = mCodes.remove(0);
+                    } else if (mPoison != null && body.contains(mPoison)) {
+                        code = 400;
+                    } else {
+                        code = 202;
+                    }
+                    if (code == 202 && body.startsWith("{\"write_api_key\":\"key\",\"updates\":[")) {
+                        mAccepted.addAll(values);
+                    }
+                }
+                exchange.sendResponseHeaders(code, -1);
+                exchange.close();
+            }
+        });
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + mServer.getAddress().getPort() + "/channels/1/bulk_update.json";
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        assertEquals("gzip", exchange.getRequestHeaders().getFirst("Content-Encoding"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(exchange.getRequestBody())) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+        }
+        return out.toString("UTF-8");
+    }
+
+    private Outbox outbox(int count) {
+        Outbox outbox = new Outbox(mDir, "outbox");
+        for (int i = 0; i < count; i++) {
+            outbox.append("field1=" + i + "&created_at=2017-01-01T00:00:00Z&status=MQTTPUBLISH");
+        }
+        return outbox;
+    }
+
+    private BulkUploader uploader(Outbox outbox) {
+        return new BulkUploader(null, outbox, new Outbox(mDir, "outbox.rejected"), mUrl, "key", mNoLimit);
+    }
+
+    private static List<String> range(int from, int to) {
+        List<String> values = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            values.add(String.valueOf(i));
+        }
+        return values;
+    }
+
+    private static List<String> readAll(Outbox outbox) throws IOException {
+        List<String> messages = new ArrayList<>();
+        try (Outbox.Batch batch = outbox.read()) {
+            String message;
+            while ((message = batch.next()) != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    @Test
+    public void accepted() {
+        Outbox outbox = outbox(2000);
+        BulkUploader uploader = uploader(outbox);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(BulkUploader.Result.CONSUMED, uploader.upload());
+        }
+        uploader.close();
+
+        assertEquals(Arrays.asList(960, 960, 80), mRequests);
+        assertEquals(range(0, 2000), mAccepted);
+        assertEquals(0, outbox.getPendingBytes());
+    }
+
+    @Test
+    public void serverErrorIsRetried() {
+        Outbox outbox = outbox(10);
+        long pending = outbox.getPendingBytes();
+        BulkUploader uploader = uploader(outbox);
+        mCodes.add(503);
+        mCodes.add(429);
+
+        assertEquals(BulkUploader.Result.FAILED, uploader.upload());
+        assertEquals(BulkUploader.Result.FAILED, uploader.upload());
+        assertEquals(pending, outbox.getPendingBytes());
+
+        assertEquals(BulkUploader.Result.CONSUMED, uploader.upload());
+        uploader.close();
+        assertEquals(range(0, 10), mAccepted);
+        assertEquals(0, outbox.getPendingBytes());
+    }
+
+    @Test
+    public void networkErrorIsRetried() {
+        Outbox outbox = outbox(10);
+        BulkUploader uploader = new BulkUploader(null, outbox, new Outbox(mDir, "outbox.rejected"),
+                "http://127.0.0.1:1/channels/1/bulk_update.json", "key", mNoLimit);
+        assertEquals(BulkUploader.Result.FAILED, uploader.upload());
+        uploader.close();
+        assertTrue(outbox.getPendingBytes() > 0);
+    }
+
+    @Test
+    public void resumesAfterPartialCommit() throws IOException {
+        Outbox outbox = outbox(1000);
+        BulkUploader uploader = uploader(outbox);
+        assertEquals(BulkUploader.Result.CONSUMED, uploader.upload());
+        uploader.close();
+
+        //restart: a new outbox over the same files goes on after the committed batch
+        Outbox reopened = new Outbox(mDir, "outbox");
+        assertEquals(40, readAll(reopened).size());
+        uploader = uploader(reopened);
+        assertEquals(BulkUploader.Result.CONSUMED, uploader.upload());
+        uploader.close();
+
+        assertEquals(Arrays.asList(960, 40), mRequests);
+        assertEquals(range(0, 1000), mAccepted);
+        assertEquals(0, reopened.getPendingBytes());
+    }
+
+    @Test
+    public void rejectedMessageIsQuarantined() throws IOException {
+        Outbox outbox = outbox(5);
+        outbox.append("field1=bad&status=MQTTPUBLISH");
+        for (int i = 5; i < 10; i++) {
+            outbox.append("field1=" + i + "&created_at=2017-01-01T00:00:00Z&status=MQTTPUBLISH");
+        }
+        mPoison = "bad";
+        BulkUploader uploader = uploader(outbox);
+        for (int i = 0; i < 20 && outbox.getPendingBytes() > 0; i++) {
+            assertEquals(BulkUploader.Result.CONSUMED, uploader.upload());
+        }
+        uploader.close();
+
+        assertEquals(0, outbox.getPendingBytes());
+        assertEquals(range(0, 10), mAccepted);
+        assertEquals(Arrays.asList("field1=bad&status=MQTTPUBLISH"),
+                readAll(new Outbox(mDir, "outbox.rejected")));
+    }
+
+    @Test
+    public void unauthorizedLeavesTheOutboxUntouched() throws IOException {
+        Outbox outbox = outbox(10);
+        long pending = outbox.getPendingBytes();
+        mCodes.add(401);
+        mCodes.add(404);
+        BulkUploader uploader = uploader(outbox);
+        assertEquals(BulkUploader.Result.REFUSED, uploader.upload());
+        assertEquals(BulkUploader.Result.REFUSED, uploader.upload());
+        assertEquals(pending, outbox.getPendingBytes());
+        assertEquals(0, new Outbox(mDir, "outbox.rejected").getPendingBytes());
+
+        //the key is fixed: everything goes through in one full batch
+        assertEquals(BulkUploader.Result.CONSUMED, uploader.upload());
+        uploader.close();
+        assertEquals(Arrays.asList(10, 10, 10), mRequests);
+        assertEquals(range(0, 10), mAccepted);
+        assertEquals(0, outbox.getPendingBytes());
+    }
+
+    @Test
+    public void statusIsDecoded() throws IOException {
+        Outbox outbox = new Outbox(mDir, "outbox");
+        outbox.append("field1=1&status=ALERT%3A+a%26b%3Dc+3.0");
+        //the stand-in refuses the decoded status, so it must have reached it decoded
+        mPoison = "\"status\":\"ALERT: a&b=c 3.0\"";
+        BulkUploader uploader = uploader(outbox);
+        assertEquals(BulkUploader.Result.CONSUMED, uploader.upload());
+        uploader.close();
+        assertTrue(mAccepted.isEmpty());
+        assertEquals(1, readAll(new Outbox(mDir, "outbox.rejected")).size());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the filters and the default chains of build.gradle, and reports their cost per sample.
+ */
+public class FilterChainTest {
+
+    private static final String TEMPERATURE_FILTER = "outlier:2:3,median:3,ema:0.5";
+    private static final String PRESSURE_FILTER = "outlier:3:3,median:3,ema:0.5";
+
+    private static float[] run(SignalFilter filter, float... values) {
+        float[] out = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            out[i] = filter.filter(values[i]);
+        }
+        return out;
+    }
+
+    @Test
+    public void medianRemovesSpikes() {
+        assertArrayEquals(new float[]{20, 20, 20, 20, 20},
+                run(new SignalFilter.Median(3), 20, 20, 30, 20, 20), 0);
+    }
+
+    @Test
+    public void medianFollowsSteps() {
+        assertArrayEquals(new float[]{20, 20, 20, 20, 25},
+                run(new SignalFilter.Median(3), 20, 20, 20, 25, 25), 0);
+    }
+
+    @Test
+    public void medianSkipsNaN() {
+        //a NaN in the window would never be evicted and bias the median for good
+        assertArrayEquals(new float[]{Float.NaN, 20, 21, 21, 21, 22, 23, 24},
+                run(new SignalFilter.Median(3), Float.NaN, 20, 21, Float.NaN, 22, 23, 24, 25), 0);
+    }
+
+    @Test
+    public void emaConverges() {
+        SignalFilter.Ema ema = new SignalFilter.Ema(0.5f);
+        assertEquals(10, ema.filter(10), 0);
+        float value = 0;
+        for (int i = 0; i < 20; i++) {
+            value = ema.filter(20);
+        }
+        assertEquals(20, value, 1e-4);
+        ema.reset();
+        assertEquals(5, ema.filter(5), 0);
+    }
+
+    @Test
+    public void outlierRejectionAcceptsANewLevel() {
+        SignalFilter.OutlierRejection outliers = new SignalFilter.OutlierRejection(2, 3);
+        assertArrayEquals(new float[]{20, 20, 20, 20, 30, 31},
+                run(outliers, 20, 30, 30, 30, 30, 31), 0);
+    }
+
+    @Test
+    public void outlierRejectionResets() {
+        SignalFilter.OutlierRejection outliers = new SignalFilter.OutlierRejection(2, 3);
+        outliers.filter(20);
+        assertEquals(20, outliers.filter(50), 0);
+        outliers.reset();
+        assertEquals(50, outliers.filter(50), 0);
+    }
+
+    @Test
+    public void defaultChainRemovesSpikesAndFollowsSteps() {
+        FilterChain chain = FilterChain.parse(TEMPERATURE_FILTER);
+        for (int i = 0; i < 10; i++) {
+            chain.filter(20);
+        }
+        //a one sample glitch of the BMP280 does not show at all
+        assertEquals(20, chain.filter(40), 0);
+        assertEquals(20, chain.filter(20), 0);
+        //a real step is followed once the outlier rejection gives in
+        float value = 0;
+        for (int i = 0; i < 20; i++) {
+            value = chain.filter(25);
+        }
+        assertEquals(25, value, 0.01);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownFilters() {
+        FilterChain.parse("median:3,kalman:1");
+    }
+
+    @Test
+    public void emptySpecPassesThrough() {
+        assertEquals(21.5f, FilterChain.parse("").filter(21.5f), 0);
+    }
+
+    //average cost of one sample, after a warm up for the JIT
+    private static double costNs(SignalFilter filter, float[] samples) {
+        float sink = 0;
+        for (int i = 0; i < samples.length; i++) {
+            sink += filter.filter(samples[i]);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < samples.length; i++) {
+            sink += filter.filter(samples[i]);
+        }
+        long elapsed = System.nanoTime() - start;
+        assertFalse(Float.isNaN(sink));
+        return (double) elapsed / samples.length;
+    }
+
+    private static SignalFilter asFilter(final FilterChain chain) {
+        return new SignalFilter() {
+
+            @Override
+            public float filter(float value) {
+                return chain.filter(value);
+            }
+
+            @Override
+            public void reset() {
+                chain.reset();
+            }
+        };
+    }
+
+    @Test
+    public void reportsCostPerSample() {
+        Random random = new Random(1);
+        float[] samples = new float[200000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = 20 + (float) random.nextGaussian() * (random.nextInt(100) == 0 ? 10 : 0.1f);
+        }
+        String[] names = {"outlier:2:3", "median:3", "ema:0.5", TEMPERATURE_FILTER, PRESSURE_FILTER};
+        StringBuilder report = new StringBuilder("filter cost per sample:");
+        for (String name : names) {
+            double cost = costNs(asFilter(FilterChain.parse(name)), samples);
+            //far below the 100 ms fastest sampling interval, even on a slow CI machine
+            assertTrue(name + ": " + cost + " ns", cost < 100000);
+            report.append(String.format(Locale.US, " %s %.1f ns,", name, cost));
+        }
+        System.out.println(report.substring(0, report.length() - 1));
+    }
+}
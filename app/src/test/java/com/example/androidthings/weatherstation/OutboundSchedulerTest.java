@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import android.os.Handler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The handler of the local tests never runs anything: messages stay queued as submitted.
+ */
+public class OutboundSchedulerTest {
+
+    private final List<String> mBacklog = new ArrayList<>();
+
+    private final OutboundScheduler.Sender mSender = new OutboundScheduler.Sender() {
+
+        @Override
+        public boolean send(String destination, String payload, OutboundScheduler.Priority priority,
+                long acquiredNs) {
+            return true;
+        }
+    };
+
+    private OutboundScheduler scheduler() {
+        OutboundScheduler scheduler = new OutboundScheduler(new Handler(), mSender,
+                new OutboundScheduler.Backlog() {
+
+                    @Override
+                    public void add(String destination, String payload) {
+                        mBacklog.add(payload);
+                    }
+                });
+        scheduler.addDestination("channel", 1, 16000);
+        return scheduler;
+    }
+
+    @Test
+    public void routineUpdatesCoalesce() {
+        OutboundScheduler scheduler = scheduler();
+        for (int i = 0; i < 10; i++) {
+            scheduler.submit("channel", "field1=" + i, OutboundScheduler.Priority.NORMAL, 0);
+        }
+        //superseded while waiting for a token: merged, not queued as history
+        assertTrue(mBacklog.isEmpty());
+    }
+
+    @Test
+    public void backfillGoesToTheBacklog() {
+        OutboundScheduler scheduler = scheduler();
+        scheduler.submit("channel", "field1=1", OutboundScheduler.Priority.BACKFILL, 0);
+        assertEquals(1, mBacklog.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownDestinations() {
+        scheduler().submit("other", "field1=1", OutboundScheduler.Priority.NORMAL, 0);
+    }
+}
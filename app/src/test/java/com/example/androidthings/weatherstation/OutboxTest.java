@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDir;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = mFolder.newFolder();
+    }
+
+    private static List<String> readAll(Outbox outbox) throws IOException {
+        List<String> messages = new ArrayList<>();
+        try (Outbox.Batch batch = outbox.read()) {
+            String message;
+            while ((message = batch.next()) != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    @Test
+    public void readsMessagesInOrder() throws IOException {
+        Outbox outbox = new Outbox(mDir, "outbox");
+        assertTrue(outbox.append("a"));
+        assertTrue(outbox.append("b"));
+        assertEquals(Arrays.asList("a", "b"), readAll(outbox));
+        //nothing is consumed without a commit
+        assertEquals(Arrays.asList("a", "b"), readAll(outbox));
+    }
+
+    @Test
+    public void commitOfEverythingTruncates() throws IOException {
+        Outbox outbox = new Outbox(mDir, "outbox");
+        outbox.append("a");
+        outbox.append("b");
+        try (Outbox.Batch batch = outbox.read()) {
+            batch.next();
+            batch.next();
+            outbox.commit(batch.getOffset());
+        }
+        assertEquals(0, outbox.getPendingBytes());
+        assertEquals(0, new File(mDir, "outbox").length());
+
+        outbox.append("c");
+        assertEquals(Arrays.asList("c"), readAll(outbox));
+        assertEquals(Arrays.asList("c"), readAll(new Outbox(mDir, "outbox")));
+    }
+
+    @Test
+    public void partialCommitSurvivesReopening() throws IOException {
+        Outbox outbox = new Outbox(mDir, "outbox");
+        outbox.append("a");
+        outbox.append("b");
+        outbox.append("c");
+        try (Outbox.Batch batch = outbox.read()) {
+            batch.next();
+            outbox.commit(batch.getOffset());
+        }
+        assertEquals(4, outbox.getPendingBytes());
+
+        Outbox reopened = new Outbox(mDir, "outbox");
+        assertEquals(4, reopened.getPendingBytes());
+        assertEquals(Arrays.asList("b", "c"), readAll(reopened));
+    }
+
+    @Test
+    public void dropsPartialLastMessage() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(new File(mDir, "outbox"))) {
+            out.write("a\nb\ntrunc".getBytes("UTF-8"));
+        }
+        Outbox outbox = new Outbox(mDir, "outbox");
+        assertEquals(Arrays.asList("a", "b"), readAll(outbox));
+        outbox.append("c");
+        assertEquals(Arrays.asList("a", "b", "c"), readAll(outbox));
+    }
+
+    @Test
+    public void cursorPastTheEndIsClamped() throws IOException {
+        Outbox outbox = new Outbox(mDir, "outbox");
+        outbox.append("a");
+        outbox.append("b");
+        try (Outbox.Batch batch = outbox.read()) {
+            batch.next();
+            outbox.commit(batch.getOffset());
+        }
+        //the file lost its tail, e.g. restored from an older backup
+        try (RandomAccessFile file = new RandomAccessFile(new File(mDir, "outbox"), "rw")) {
+            file.setLength(1);
+        }
+        Outbox reopened = new Outbox(mDir, "outbox");
+        assertEquals(0, reopened.getPendingBytes());
+        assertTrue(readAll(reopened).isEmpty());
+    }
+
+    @Test
+    public void unreadableCursorSendsEverythingAgain() throws IOException {
+        Outbox outbox = new Outbox(mDir, "outbox");
+        outbox.append("a");
+        outbox.append("b");
+        try (Outbox.Batch batch = outbox.read()) {
+            batch.next();
+            outbox.commit(batch.getOffset());
+        }
+        try (RandomAccessFile file = new RandomAccessFile(new File(mDir, "outbox.cursor"), "rw")) {
+            file.setLength(3);
+        }
+        assertEquals(Arrays.asList("a", "b"), readAll(new Outbox(mDir, "outbox")));
+    }
+
+    @Test
+    public void movesPendingMessagesAndDeletes() throws IOException {
+        Outbox legacy = new Outbox(mDir, "outbox");
+        legacy.append("a");
+        legacy.append("b");
+        legacy.append("c");
+        try (Outbox.Batch batch = legacy.read()) {
+            batch.next();
+            legacy.commit(batch.getOffset());
+        }
+        Outbox target = new Outbox(mDir, "outbox-1");
+        target.append("d");
+
+        assertEquals(2, legacy.moveTo(target));
+        assertEquals(Arrays.asList("d", "b", "c"), readAll(target));
+        assertFalse(new File(mDir, "outbox").exists());
+        assertFalse(new File(mDir, "outbox.cursor").exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsLineBreaks() {
+        new Outbox(mDir, "outbox").append("a\nb");
+    }
+
+    @Test
+    public void refusesMessagesWhenFull() {
+        Outbox outbox = new Outbox(mDir, "outbox");
+        char[] chars = new char[64 * 1024 - 1];
+        Arrays.fill(chars, 'x');
+        String message = new String(chars);
+        int appended = 0;
+        while (outbox.append(message)) {
+            appended++;
+        }
+        assertEquals(64, appended);
+        assertFalse(outbox.append("y"));
+    }
+}
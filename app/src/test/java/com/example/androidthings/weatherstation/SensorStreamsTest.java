@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SensorStreamsTest {
+
+    private static final String CRC_OK = "72 01 4b 46 7f ff 0e 10 57 : crc=57 YES";
+    private static final String CRC_BAD = "72 01 4b 46 7f ff 0e 10 57 : crc=12 NO";
+
+    @Test
+    public void readsThermalZone() {
+        assertEquals(48.312f, SensorStreams.parseTemperature("48312", "48312"), 1e-4);
+    }
+
+    @Test
+    public void readsOneWireProbe() {
+        assertEquals(23.125f, SensorStreams.parseTemperature(CRC_OK,
+                "72 01 4b 46 7f ff 0e 10 57 t=23125"), 1e-4);
+        assertEquals(-1.5f, SensorStreams.parseTemperature(CRC_OK,
+                "e8 ff 4b 46 7f ff 0e 10 57 t=-1500"), 1e-4);
+    }
+
+    @Test
+    public void rejectsFailedCrc() {
+        assertTrue(Float.isNaN(SensorStreams.parseTemperature(CRC_BAD,
+                "72 01 4b 46 7f ff 0e 10 57 t=23125")));
+    }
+
+    @Test
+    public void rejectsPowerOnValue() {
+        assertTrue(Float.isNaN(SensorStreams.parseTemperature(CRC_OK,
+                "50 05 4b 46 7f ff 0c 10 1c t=85000")));
+    }
+
+    @Test
+    public void rejectsMissingCrcLine() {
+        String line = "72 01 4b 46 7f ff 0e 10 57 t=23125";
+        assertTrue(Float.isNaN(SensorStreams.parseTemperature(line, line)));
+    }
+}
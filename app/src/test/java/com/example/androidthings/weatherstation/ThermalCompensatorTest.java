@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThermalCompensatorTest {
+
+    private static final float CPU = 50;
+    private static final float SENSOR = 30;
+    private static final float AMBIENT = 25;
+
+    private ThermalCompensator mCompensator;
+    private long mTimeMs;
+
+    @Before
+    public void setUp() {
+        mCompensator = new ThermalCompensator();
+    }
+
+    //one sample at a steady CPU temperature, then its reference
+    private float learn(float ambient) {
+        mTimeMs += 1000;
+        mCompensator.onCpuTemperature(CPU, mTimeMs);
+        float compensated = mCompensator.compensate(SENSOR);
+        mCompensator.onReference(ambient);
+        return compensated;
+    }
+
+    @Test
+    public void learnsTheBias() {
+        for (int i = 0; i < 100; i++) {
+            learn(AMBIENT);
+        }
+        assertEquals(AMBIENT, mCompensator.compensate(SENSOR), 0.01);
+        assertEquals(0, mCompensator.getRejectedCount());
+    }
+
+    @Test
+    public void skipsOutliers() {
+        for (int i = 0; i < 100; i++) {
+            learn(AMBIENT);
+        }
+        long updates = mCompensator.getUpdateCount();
+        learn(AMBIENT + 10);
+        assertEquals(1, mCompensator.getRejectedCount());
+        assertEquals(updates, mCompensator.getUpdateCount());
+        assertEquals(AMBIENT, mCompensator.compensate(SENSOR), 0.01);
+    }
+
+    @Test
+    public void learnsAPersistentShift() {
+        //long enough for the fit error to forget the error of the seed
+        for (int i = 0; i < 300; i++) {
+            learn(AMBIENT);
+        }
+        for (int i = 0; i < 200; i++) {
+            learn(AMBIENT + 3);
+        }
+        assertTrue(mCompensator.getRejectedCount() > 0);
+        assertEquals(AMBIENT + 3, mCompensator.compensate(SENSOR), 0.1);
+    }
+
+    @Test
+    public void covarianceStaysBounded() {
+        //the slope and the CPU - sensor difference never move: forgetting alone would let the
+        //covariance of the unexcited directions grow as 1 / 0.999^n
+        for (int i = 0; i < 20000; i++) {
+            learn(AMBIENT);
+        }
+        assertTrue(mCompensator.getCovarianceTrace() <= 30 + 1e-9);
+        learn(AMBIENT);
+        assertEquals(AMBIENT, mCompensator.compensate(SENSOR), 0.01);
+    }
+
+    @Test
+    public void cpuSlopeDoesNotDependOnThePollInterval() {
+        RateOfChange fast = new RateOfChange(60000);
+        RateOfChange slow = new RateOfChange(60000);
+        //a single 0.5 degree step, polled every second or every 10 seconds
+        for (long t = 0; t <= 120000; t += 1000) {
+            fast.update(t < 30000 ? 48 : 48.5f, t);
+        }
+        for (long t = 0; t <= 120000; t += 10000) {
+            slow.update(t < 30000 ? 48 : 48.5f, t);
+        }
+        assertEquals(fast.get(), slow.get(), 0.05);
+        assertTrue(fast.get() < 0.5f);
+    }
+}
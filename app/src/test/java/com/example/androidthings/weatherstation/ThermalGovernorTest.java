@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.androidthings.weatherstation;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ThermalGovernorTest {
+
+    //the thermal zone of the Raspberry Pi 3 reads in 0.5 degree steps
+    private static float quantize(double temperature) {
+        return (float) (Math.floor(temperature * 2) / 2);
+    }
+
+    @Test
+    public void quantizedFlatTraceStaysNormal() {
+        ThermalGovernor governor = new ThermalGovernor();
+        Random random = new Random(42);
+        //an hour at 1 Hz, 2 degrees below the first threshold, toggling between 57.5 and 58.5:
+        //every 0.5 degree step over one second is 30 degrees per minute
+        for (long t = 0; t < 3600 * 1000; t += 1000) {
+            governor.onCpuTemperature(quantize(58 + random.nextGaussian() * 0.3), t);
+            assertEquals("at " + t + " ms", ThermalGovernor.Level.NORMAL, governor.getLevel());
+        }
+    }
+
+    //the temperature the governor leaves NORMAL at, warming 1 degree per minute
+    private static float warmAt(long pollMs) {
+        ThermalGovernor governor = new ThermalGovernor();
+        for (long t = 0; t < 30 * 60 * 1000; t += pollMs) {
+            float temperature = quantize(45 + t / 60000.0);
+            governor.onCpuTemperature(temperature, t);
+            if (governor.getLevel() != ThermalGovernor.Level.NORMAL) {
+                assertEquals(ThermalGovernor.Level.WARM, governor.getLevel());
+                return temperature;
+            }
+        }
+        throw new AssertionError("never left NORMAL");
+    }
+
+    @Test
+    public void steadyWarmingIsAnticipated() {
+        float temperature = warmAt(1000);
+        assertTrue("at " + temperature, temperature < 60 && temperature >= 57);
+    }
+
+    @Test
+    public void slopeDoesNotDependOnThePollInterval() {
+        assertEquals(warmAt(1000), warmAt(5000), 0.5);
+    }
+
+    @Test
+    public void coolsDownOneStepAtATime() {
+        ThermalGovernor governor = new ThermalGovernor();
+        long t = 0;
+        for (; t < 10 * 60 * 1000; t += 1000) {
+            governor.onCpuTemperature(72, t);
+        }
+        assertEquals(ThermalGovernor.Level.HOT, governor.getLevel());
+        //below both hysteresis bands at once: still one level per dwell time
+        long hotUntil = -1;
+        for (; t < 20 * 60 * 1000; t += 1000) {
+            governor.onCpuTemperature(50, t);
+            if (hotUntil < 0 && governor.getLevel() != ThermalGovernor.Level.HOT) {
+                hotUntil = t;
+                assertEquals(ThermalGovernor.Level.WARM, governor.getLevel());
+            }
+        }
+        assertTrue(hotUntil > 0);
+        assertEquals(ThermalGovernor.Level.NORMAL, governor.getLevel());
+    }
+}